@@ -16,6 +16,8 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 
 
 public class BluetoothConnection {
@@ -27,6 +29,7 @@ public class BluetoothConnection {
     public static final int SCANNING = 3;
     public static final int CONNECTING = 4;
     public static final int CONNECTED = 5;
+    private static final byte[] BENCHMARK_PREFIX = Hex.stringToHex(LinkBenchmark.PREFIX);
 
 
     //MEMBERS
@@ -38,7 +41,12 @@ public class BluetoothConnection {
     private ArrayList<BluetoothDevice> _scannedDevices;
     private BluetoothListener _btListener;
     private BluetoothDevice _selectedDevice;
-    private BluetoothStreamConnection _btStream;
+    private volatile BluetoothStreamConnection _btStream;
+    private final Object _streamLock = new Object();
+    private volatile ReliableLink _reliable;
+    private volatile SampleStage _sampleStage;
+    private volatile LinkBenchmark _benchmark;
+    private CopyOnWriteArrayList<Subscription> _subscriptions;
 
 
     /** CONSTRUCTOR FOR BLUETOOTH CONNECTION
@@ -53,6 +61,10 @@ public class BluetoothConnection {
         _btListener = btListener;
         _btStream = null;
         _btSocket = null;
+        _reliable = null;
+        _sampleStage = null;
+        _benchmark = null;
+        _subscriptions = new CopyOnWriteArrayList<>();
 
         //update state of bluetooth without notifying ui because
         // ui still doesn't have reference to this object.
@@ -142,9 +154,110 @@ public class BluetoothConnection {
 
     /** ATTEMPTS CONNECTION WITH THE GIVEN BLUETOOTH DEVICE */
     private void setupStreamConnection(BluetoothSocket btSocket) {
-        _btSocket = btSocket;
-        _btStream =  new BluetoothStreamConnection();
-        _btStream.start();
+        BluetoothStreamConnection stream;
+        synchronized (_streamLock) {
+            _btSocket = btSocket;
+            stream = new BluetoothStreamConnection();
+            _btStream = stream;
+        }
+        stream.start();
+
+        //resend anything the previous connection didn't get acknowledged
+        if(_reliable != null)
+            _reliable.linkUp();
+    }
+
+
+    /** ENABLES SEQUENCED, ACKNOWLEDGED DELIVERY UNDER SENDDATA AND DATARECEIVED
+     *   BOTH ENDS OF THE LINK MUST ENABLE IT
+     * @param window number of unacknowledged frames allowed in flight (1 - 64)
+     * @param timeout milliseconds before an unacknowledged frame is resent */
+    public void enableReliableDelivery(int window, long timeout) {
+        disableReliableDelivery();
+        _reliable = new ReliableLink(window, timeout, _reliableListener);
+    }
+
+
+    /** DISABLES RELIABLE DELIVERY, UNACKNOWLEDGED FRAMES ARE DROPPED */
+    public void disableReliableDelivery() {
+        if(_reliable == null)
+            return;
+
+        _reliable.close();
+        _reliable = null;
+    }
+
+
+    /** RETURNS THE RELIABLE LINK IF ENABLED, OTHERWISE NULL */
+    public ReliableLink getReliableLink() {
+        return _reliable;
+    }
+
+
+    /** ROUTES NUMERIC FRAMES THROUGH THE GIVEN STAGE ON THE STREAM THREAD INSTEAD OF
+     *   DATARECEIVED, NON NUMERIC FRAMES STILL REACH THE LISTENER. NULL REMOVES THE STAGE */
+    public void setSampleStage(SampleStage stage) {
+        _sampleStage = stage;
+    }
+
+
+    /** RUNS THE BENCHMARK IN A BACKGROUND THREAD AGAINST A PEER THAT ECHOES EVERY FRAME
+     *   FRAMES BYPASS THE RELIABLE LINK AND ECHOES ARE KEPT FROM THE LISTENER WHILE IT RUNS
+     *   RETURNS FALSE IF NOT CONNECTED OR A BENCHMARK IS ALREADY RUNNING */
+    public boolean startBenchmark(final LinkBenchmark benchmark, final LinkBenchmark.ResultListener listener) {
+        if(_state != CONNECTED || _benchmark != null)
+            return false;
+
+        _benchmark = benchmark;
+        new Thread() {
+            public void run() {
+                final LinkBenchmark.Result result;
+                try {
+                    result = benchmark.run(_benchmarkSender);
+                } finally {
+                    //a failed run must not keep swallowing frames or block the next one
+                    _benchmark = null;
+                }
+
+                //report results in main thread
+                ((MainActivity) _context).runOnUiThread(new Runnable() {
+                    public void run() {
+                        listener.benchmarkFinished(result);
+                    }
+                });
+            }
+        }.start();
+
+        return true;
+    }
+
+
+    /** REGISTERS A SUBSCRIBER THAT RECEIVES EVERY FRAME AND STATE CHANGE ITS FILTER
+     *   ACCEPTS, INCLUDING FRAMES THE SAMPLE STAGE OR BENCHMARK CONSUME. FRAMES ARE
+     *   SHARED, NOT COPIED
+     * @param subscriber subscriber that receives the events
+     * @param filter filter that picks the events, see the Subscription factories
+     * @param capacity maximum number of events waiting for the subscriber
+     * @param overflow Subscription.DROP_OLDEST, DROP_NEWEST or BLOCK
+     * @param executor executor the subscriber is called on, see getUiExecutor */
+    public Subscription subscribe(Subscription.Subscriber subscriber, Subscription.Filter filter,
+                                  int capacity, int overflow, Executor executor) {
+        Subscription subscription = new Subscription(subscriber, filter, capacity, overflow, executor);
+        _subscriptions.add(subscription);
+        return subscription;
+    }
+
+
+    /** REMOVES THE SUBSCRIPTION AND DISCARDS ITS WAITING EVENTS */
+    public void unsubscribe(Subscription subscription) {
+        if(_subscriptions.remove(subscription))
+            subscription.close();
+    }
+
+
+    /** RETURNS AN EXECUTOR THAT RUNS ON THE UI THREAD */
+    public Executor getUiExecutor() {
+        return _uiExecutor;
     }
 
 
@@ -204,6 +317,7 @@ public class BluetoothConnection {
                     _btListener.updateBluetoothState(IDLE);
                 }
             });
+            publishState(IDLE);
 
             _btSocket = null;
         }
@@ -221,7 +335,7 @@ public class BluetoothConnection {
             } catch (IOException e) {
                 closeSocket(_btSocket);
                 _btSocket = null;
-                updateState(IDLE);
+                postState(IDLE);
             }
         }
 
@@ -238,54 +352,139 @@ public class BluetoothConnection {
                     // Read from the InputStream
                     int num_bytes = _iStream.read(packet);
                     if(num_bytes > 0) {
-                        bytes.add(packet);
-                        final byte[] collect = bytes.removeUntilDelimiter();
-
-                        //if there was a result with a delimiter
-                        if(collect != null) {
-                            // Send the obtained num_bytes to the UI activity
-                            ((MainActivity) _context).runOnUiThread(new Runnable() {
-                                public void run() {
-                                    _btListener.dataReceived(Hex.hexToString(collect));
-                                }
-                            });
-                        }
+                        bytes.add(packet, num_bytes);
+
+                        //handle every complete frame in the buffer
+                        byte[] collect;
+                        while ((collect = bytes.removeUntilDelimiter()) != null)
+                            frameReceived(collect);
                     }
                 } catch (IOException e) {
-                    updateState(IDLE);
-                    closeSocket(_btSocket);
-                    _btSocket = null;
-                    _btStream = null;
+                    //emit the last partial bucket of a stream that just stopped
+                    SampleStage stage = _sampleStage;
+                    if(stage != null)
+                        stage.flush();
+
+                    streamFailed(this);
                     break;
                 }
             }
         }
 
 
-        public void write(String s) {
+        /** PUBLISHES THE FRAME TO THE SUBSCRIBERS, THEN PASSES IT TO THE BENCHMARK,
+         *   THE SAMPLE STAGE, THE RELIABLE LINK OR THE UI ACTIVITY */
+        private void frameReceived(byte[] collect) {
+            LinkBenchmark benchmark = _benchmark;
+            ReliableLink reliable = _reliable;
+            SampleStage stage = _sampleStage;
+            Frame frame = new Frame(collect, collect.length - 1, System.nanoTime());
+
+            //subscribers see every frame before anything consumes it, they share the
+            //array since nothing else holds on to it. reliable protocol frames are
+            //published once their payload comes out of the reliable link instead
+            if(reliable == null || (benchmark != null && frame.startsWith(BENCHMARK_PREFIX)))
+                publishFrame(frame);
+
+            //numeric frames are parsed straight from the bytes, without the delimiter
+            if(benchmark == null && reliable == null && stage != null
+                    && stage.add(collect, 0, frame.length(), frame.getTimeNanos()))
+                return;
+
+            final String data = Hex.hexToString(collect);
+
+            //benchmark echoes and reliable frames are handled without the delimiter
+            if(benchmark != null && benchmark.frameReceived(data.substring(0, data.length() - 1)))
+                return;
+
+            if(reliable != null) {
+                //payloads come back through the reliable listener
+                reliable.frameReceived(data.substring(0, data.length() - 1));
+                return;
+            }
+
+            // Send the obtained bytes to the UI activity
+            ((MainActivity) _context).runOnUiThread(new Runnable() {
+                public void run() {
+                    _btListener.dataReceived(data);
+                }
+            });
+        }
+
+
+        /** WRITES THE STRING WITH ITS DELIMITER, RETURNS FALSE IF DISCONNECTED */
+        public synchronized boolean write(String s) {
             try {
                 s = s.concat("\r");
                 byte[] bytes = Hex.stringToHex(s);
 
                 _oStream.write(bytes);
+                return true;
             } catch (IOException e) {
-                //disconnected, clean up mess
-                updateState(IDLE);
-                closeSocket(_btSocket);
-                _btSocket = null;
-                _btStream = null;
+                //disconnected, the reader may be cleaning up at the same time
+                streamFailed(this);
+                return false;
             }
         }
     }
 
 
-    /** SENDS DATA TO THE OUTPUT STREAM IF AVAILABLE */
-    public void sendData(String s) {
-        if(_state == CONNECTED && _btStream != null)
-            _btStream.write(s);
+    /** SENDS DATA TO THE OUTPUT STREAM IF AVAILABLE
+     *   WITH RELIABLE DELIVERY THE DATA IS QUEUED WHILE DISCONNECTED AND SENT ONCE THE
+     *   LINK IS BACK. RETURNS FALSE IF THE DATA WAS NEITHER SENT NOR QUEUED, SO THE
+     *   CALLER CAN HOLD OFF UNTIL THE BACKLOG DRAINS */
+    public boolean sendData(String s) {
+        ReliableLink reliable = _reliable;
+        if(reliable != null)
+            return reliable.send(s);
+
+        BluetoothStreamConnection stream = _btStream;
+        if(_state != CONNECTED || stream == null)
+            return false;
+
+        return stream.write(s);
+    }
+
+
+    /** WRITES A RAW FRAME TO THE STREAM, RETURNS FALSE IF DISCONNECTED */
+    private boolean writeFrame(String frame) {
+        BluetoothStreamConnection stream = _btStream;
+        return stream != null && stream.write(frame);
     }
 
 
+    /** BENCHMARK SENDER MEMBER*/
+    final LinkBenchmark.FrameSender _benchmarkSender = new LinkBenchmark.FrameSender() {
+        public boolean sendFrame(String frame) {
+            return writeFrame(frame);
+        }
+    };
+
+
+    /** RELIABLE LINK LISTENER MEMBER*/
+    final ReliableLink.ReliableListener _reliableListener = new ReliableLink.ReliableListener() {
+        public boolean sendFrame(String frame) {
+            return writeFrame(frame);
+        }
+
+        public void payloadReceived(final String payload) {
+            byte[] bytes = Hex.stringToHex(payload);
+            Frame frame = new Frame(bytes, bytes.length, System.nanoTime());
+            publishFrame(frame);
+
+            SampleStage stage = _sampleStage;
+            if(stage != null && stage.add(payload, frame.getTimeNanos()))
+                return;
+
+            ((MainActivity) _context).runOnUiThread(new Runnable() {
+                public void run() {
+                    _btListener.dataReceived(payload);
+                }
+            });
+        }
+    };
+
+
     /** BROADCAST RECEIVER MEMBER*/
     final BroadcastReceiver _broadcastReceiver = new BroadcastReceiver() {
         public void onReceive(Context context, Intent intent) {
@@ -306,6 +505,46 @@ public class BluetoothConnection {
     };
 
 
+    /** UI EXECUTOR MEMBER*/
+    final Executor _uiExecutor = new Executor() {
+        public void execute(Runnable runnable) {
+            ((MainActivity) _context).runOnUiThread(runnable);
+        }
+    };
+
+
+    /** PASSES THE FRAME TO EVERY SUBSCRIPTION */
+    private void publishFrame(Frame frame) {
+        for(Subscription subscription : _subscriptions)
+            subscription.publishFrame(frame);
+    }
+
+
+    /** PASSES THE STATE CHANGE TO EVERY SUBSCRIPTION */
+    private void publishState(int state) {
+        for(Subscription subscription : _subscriptions)
+            subscription.publishState(state);
+    }
+
+
+    /** CLEANS UP AFTER THE STREAM FAILED, THE READ LOOP AND WRITERS ON OTHER THREADS
+     *   MAY ALL REPORT THE SAME FAILURE BUT ONLY THE FIRST ONE DOES ANYTHING */
+    private void streamFailed(BluetoothStreamConnection stream) {
+        BluetoothSocket socket;
+        synchronized (_streamLock) {
+            if(_btStream != stream)
+                return;
+
+            socket = _btSocket;
+            _btSocket = null;
+            _btStream = null;
+        }
+
+        postState(IDLE);
+        closeSocket(socket);
+    }
+
+
     /** CLOSES THE SOCKET SAFELY */
     private void closeSocket(BluetoothSocket socket) {
         if (socket != null) {
@@ -324,10 +563,21 @@ public class BluetoothConnection {
     }
 
 
+    /** CHANGES STATE FROM A BACKGROUND THREAD, THE INTERFACE IS UPDATED IN MAIN THREAD */
+    private void postState(final int state) {
+        ((MainActivity) _context).runOnUiThread(new Runnable() {
+            public void run() {
+                updateState(state);
+            }
+        });
+    }
+
+
     /** CHANGES STATE AND UPDATES THE INTERFACE OF THE STATE CHANGE */
     public void updateState(int state) {
         _state = state;
         _btListener.updateBluetoothState(state);
+        publishState(state);
     }
 
 
@@ -31,19 +31,25 @@ public class ByteArray {
 
     /** APPENDS THE GIVEN BYTE ARRAY TO THE END OF THE BYTE ARRAY */
     public void add(byte[] add_bytes) {
+        add(add_bytes, add_bytes.length);
+    }
+
+
+    /** APPENDS THE FIRST LENGTH BYTES OF THE GIVEN ARRAY TO THE END OF THE BYTE ARRAY */
+    public void add(byte[] add_bytes, int length) {
         if(_bytes == null){
-            _bytes = new byte[add_bytes.length];
-            for(int i=0; i<add_bytes.length; i++)
+            _bytes = new byte[length];
+            for(int i=0; i<length; i++)
                 _bytes[i] = add_bytes[i];
         } else {
             byte[] old_bytes = _bytes;
-            _bytes = new byte[_bytes.length + add_bytes.length];
+            _bytes = new byte[_bytes.length + length];
 
             int i;
             for(i=0; i<old_bytes.length; i++)
                 _bytes[i] = old_bytes[i];
 
-            for(int x=0; x<add_bytes.length; i++,x++)
+            for(int x=0; x<length; i++,x++)
                 _bytes[i] = add_bytes[x];
         }
     }
@@ -58,21 +64,21 @@ public class ByteArray {
     /** RETURNS AND DELETES ALL THE WAY UNTIL THE DELIMITER
      *   IF DELIMITER DOESN'T EXIST OR IS NOT SET RETURNS NULL */
     public byte[] removeUntilDelimiter() {
-        if(_delimiter == 0x00)
+        if(_delimiter == 0x00 || _bytes == null)
             return null;
 
         int i;
         for(i=0; i<_bytes.length; i++) {
             if(_bytes[i] == _delimiter) {
                 byte[] old_bytes = _bytes;
-                _bytes = new byte[old_bytes.length-i];
+                _bytes = new byte[old_bytes.length-i-1];
                 byte[] send_bytes = new byte[i+1];
 
                 int x;
                 for(x=0; x < i+1; x++)
                     send_bytes[x] = old_bytes[x];
 
-                for(x=0,++i;i<old_bytes.length; i++)
+                for(x=0,++i;i<old_bytes.length; i++,x++)
                     _bytes[x] = old_bytes[i];
 
                 return send_bytes;
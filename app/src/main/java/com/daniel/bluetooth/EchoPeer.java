@@ -0,0 +1,144 @@
+package com.daniel.bluetooth;
+
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/** ECHO PEER CLASS - LOCAL STAND IN FOR AN ECHO CAPABLE DEVICE SO BENCHMARKS CAN BE
+ *   REPRODUCED WITHOUT HARDWARE. EACH DIRECTION SERIALIZES FRAMES AT THE GIVEN BYTE RATE
+ *   AND ADDS THE ONE WAY DELAY, WRITES BLOCK ONCE THE SIMULATED BUFFER IS FULL, AND
+ *   ECHOES QUEUE BEHIND EACH OTHER ON THE RETURN PATH. IN SINK MODE UPLOAD FRAMES ARE
+ *   COUNTED INSTEAD OF ECHOED. A FIXED SEED MAKES THE LOSS PATTERN REPEATABLE */
+public class EchoPeer implements LinkBenchmark.FrameSender {
+    //CONSTANTS
+    private static final long BUFFER_NANOS = 50000000L;
+
+
+    //MEMBERS
+    private LinkBenchmark _benchmark;
+    private long _delayNanos;
+    private int _lossPercent;
+    private long _bytesPerSecond;
+    private boolean _sink;
+    private Random _random;
+    private long _outboundFree;
+    private long _returnFree;
+    private int _countFrames;
+    private long _countBytes;
+    private ScheduledExecutorService _executor;
+
+
+    /** CONSTRUCTOR FOR ECHO PEER
+     * @param benchmark benchmark that receives the echoes
+     * @param delay one way delay in milliseconds
+     * @param lossPercent chance in percent that a frame is dropped in each direction
+     * @param bytesPerSecond link rate in each direction, 0 for unlimited
+     * @param seed seed for the loss pattern */
+    public EchoPeer(LinkBenchmark benchmark, long delay, int lossPercent, long bytesPerSecond, long seed) {
+        _benchmark = benchmark;
+        _delayNanos = delay * 1000000L;
+        _lossPercent = lossPercent;
+        _bytesPerSecond = bytesPerSecond;
+        _sink = false;
+        _random = new Random(seed);
+        _outboundFree = System.nanoTime();
+        _returnFree = _outboundFree;
+        _executor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+
+    /** COUNTS UPLOAD FRAMES AND ANSWERS THE COUNT REQUEST INSTEAD OF ECHOING THEM */
+    public synchronized void setSink(boolean sink) {
+        _sink = sink;
+    }
+
+
+    /** QUEUES THE FRAME ON THE SIMULATED LINK, BLOCKING WHILE THE LINK IS BACKED UP */
+    public synchronized boolean sendFrame(String frame) {
+        if(_executor.isShutdown())
+            return false;
+
+        //time the frame finishes serializing outbound, the delimiter counts too
+        long now = System.nanoTime();
+        _outboundFree = Math.max(now, _outboundFree) + serialize(frame);
+
+        //apply backpressure like a full socket buffer would
+        long backlog = _outboundFree - now - BUFFER_NANOS;
+        if(backlog > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(backlog);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        if(lost())
+            return true;
+
+        long atPeer = _outboundFree + _delayNanos;
+        String reply = reply(frame);
+        if(reply == null || lost())
+            return true;
+
+        //the reply waits for the return path, then crosses it
+        _returnFree = Math.max(atPeer, _returnFree) + serialize(reply);
+        deliver(reply, _returnFree + _delayNanos);
+        return true;
+    }
+
+
+    /** STOPS ECHOING, FRAMES STILL IN FLIGHT ARE DROPPED */
+    public void close() {
+        _executor.shutdownNow();
+    }
+
+
+    /** RETURNS WHAT THE PEER SENDS BACK FOR THE FRAME, NULL FOR NOTHING */
+    private String reply(String frame) {
+        if(!_sink || !frame.startsWith(LinkBenchmark.PREFIX))
+            return frame;
+
+        char phase = frame.charAt(LinkBenchmark.PREFIX.length());
+        if(phase == LinkBenchmark.UPLOAD_FRAME) {
+            _countFrames++;
+            _countBytes += frame.length() + 1;
+            return null;
+        }
+
+        if(phase == LinkBenchmark.COUNT_FRAME) {
+            String reply = LinkBenchmark.PREFIX + LinkBenchmark.COUNT_REPLY + Integer.toHexString(_countFrames)
+                    + ":" + Long.toHexString(_countBytes) + ":";
+            _countFrames = 0;
+            _countBytes = 0;
+            return reply;
+        }
+
+        return frame;
+    }
+
+
+    /** RETURNS THE NANOSECONDS THE FRAME AND ITS DELIMITER OCCUPY ONE DIRECTION */
+    private long serialize(String frame) {
+        return _bytesPerSecond == 0 ? 0 : (frame.length() + 1) * 1000000000L / _bytesPerSecond;
+    }
+
+
+    /** RETURNS TRUE IF THE NEXT CROSSING LOSES THE FRAME */
+    private boolean lost() {
+        return _random.nextInt(100) < _lossPercent;
+    }
+
+
+    /** HANDS THE FRAME TO THE BENCHMARK AT THE GIVEN NANOTIME */
+    private void deliver(final String frame, long arrival) {
+        _executor.schedule(new Runnable() {
+            public void run() {
+                _benchmark.frameReceived(frame);
+            }
+        }, Math.max(0, arrival - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+}
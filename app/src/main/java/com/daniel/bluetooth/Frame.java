@@ -0,0 +1,76 @@
+package com.daniel.bluetooth;
+
+
+/** FRAME CLASS - READ ONLY VIEW OF A RECEIVED FRAME WITHOUT ITS DELIMITER
+ *   ONE INSTANCE IS SHARED BY EVERY SUBSCRIBER, SO THE BYTES ARE NEVER EXPOSED */
+public class Frame {
+    private final byte[] _bytes;
+    private final int _length;
+    private final long _timeNanos;
+
+
+    /** CONSTRUCTOR FOR FRAME, TAKES OWNERSHIP OF THE ARRAY
+     * @param bytes received bytes, must not be changed afterwards
+     * @param length number of bytes that belong to the frame
+     * @param timeNanos System.nanoTime() when the frame was received */
+    public Frame(byte[] bytes, int length, long timeNanos) {
+        _bytes = bytes;
+        _length = length;
+        _timeNanos = timeNanos;
+    }
+
+
+    /** RETURNS THE NUMBER OF BYTES IN THE FRAME */
+    public int length() {
+        return _length;
+    }
+
+
+    /** RETURNS THE BYTE AT THE GIVEN INDEX */
+    public byte get(int index) {
+        if(index < 0 || index >= _length)
+            throw new IndexOutOfBoundsException("index " + index + " length " + _length);
+
+        return _bytes[index];
+    }
+
+
+    /** RETURNS THE TIME THE FRAME WAS RECEIVED, FROM SYSTEM.NANOTIME() */
+    public long getTimeNanos() {
+        return _timeNanos;
+    }
+
+
+    /** RETURNS TRUE IF THE FRAME BEGINS WITH THE GIVEN BYTES */
+    public boolean startsWith(byte[] prefix) {
+        if(prefix.length > _length)
+            return false;
+
+        for(int i=0; i<prefix.length; i++) {
+            if(_bytes[i] != prefix[i])
+                return false;
+        }
+
+        return true;
+    }
+
+
+    /** COPIES THE FRAME INTO THE GIVEN ARRAY, RETURNS THE NUMBER OF BYTES COPIED */
+    public int copyTo(byte[] dest, int offset) {
+        int count = Math.min(_length, dest.length - offset);
+        System.arraycopy(_bytes, 0, dest, offset, count);
+        return count;
+    }
+
+
+    /** PARSES THE FRAME AS A NUMBER WITHOUT CREATING A STRING, NAN IF NOT NUMERIC */
+    public double toDouble() {
+        return SampleStage.parse(_bytes, 0, _length);
+    }
+
+
+    @Override /** RETURNS THE FRAME AS A STRING */
+    public String toString() {
+        return new String(_bytes, 0, _length);
+    }
+}
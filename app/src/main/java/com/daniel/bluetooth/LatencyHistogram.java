@@ -0,0 +1,122 @@
+package com.daniel.bluetooth;
+
+
+/** LATENCY HISTOGRAM CLASS - LOG LINEAR BUCKETS FOR PERCENTILES IN CONSTANT MEMORY
+ *   VALUES BELOW 32 ARE EXACT, LARGER VALUES FALL INTO 16 BUCKETS PER POWER OF TWO
+ *   SO A PERCENTILE IS WITHIN ABOUT 6% OF THE TRUE VALUE */
+public class LatencyHistogram {
+    //CONSTANTS
+    private static final int LINEAR = 32;
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int FIRST_MAGNITUDE = 5;
+
+
+    //MEMBERS
+    private long[] _counts;
+    private long _count;
+    private long _sum;
+    private long _min;
+    private long _max;
+
+
+    public LatencyHistogram() {
+        _counts = new long[LINEAR + (63 - FIRST_MAGNITUDE) * SUB_BUCKETS];
+        clear();
+    }
+
+
+    /** RECORDS A NON NEGATIVE VALUE, NEGATIVE VALUES ARE RECORDED AS ZERO */
+    public void record(long value) {
+        if(value < 0)
+            value = 0;
+
+        _counts[index(value)]++;
+        _count++;
+        _sum += value;
+        if(value < _min)
+            _min = value;
+        if(value > _max)
+            _max = value;
+    }
+
+
+    /** REMOVES ALL RECORDED VALUES */
+    public void clear() {
+        for(int i=0; i<_counts.length; i++)
+            _counts[i] = 0;
+
+        _count = 0;
+        _sum = 0;
+        _min = Long.MAX_VALUE;
+        _max = 0;
+    }
+
+
+    /** RETURNS THE VALUE BELOW WHICH THE GIVEN PERCENT OF VALUES FALL, 0 IF EMPTY */
+    public long getPercentile(double percent) {
+        if(_count == 0)
+            return 0;
+
+        //rank of the value we are after, at least the first one
+        long rank = (long)Math.ceil(percent / 100.0 * _count);
+        if(rank < 1)
+            rank = 1;
+
+        long seen = 0;
+        for(int i=0; i<_counts.length; i++) {
+            seen += _counts[i];
+            if(seen >= rank)
+                return Math.max(_min, Math.min(_max, value(i)));
+        }
+
+        return _max;
+    }
+
+
+    /** RETURNS THE NUMBER OF RECORDED VALUES */
+    public long getCount() {
+        return _count;
+    }
+
+
+    /** RETURNS THE SMALLEST RECORDED VALUE, 0 IF EMPTY */
+    public long getMin() {
+        return _count == 0 ? 0 : _min;
+    }
+
+
+    /** RETURNS THE LARGEST RECORDED VALUE */
+    public long getMax() {
+        return _max;
+    }
+
+
+    /** RETURNS THE MEAN OF THE RECORDED VALUES, 0 IF EMPTY */
+    public double getMean() {
+        return _count == 0 ? 0 : (double)_sum / _count;
+    }
+
+
+    /** RETURNS THE BUCKET HOLDING THE GIVEN VALUE */
+    private static int index(long value) {
+        if(value < LINEAR)
+            return (int)value;
+
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int)(value >>> (magnitude - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR + (magnitude - FIRST_MAGNITUDE) * SUB_BUCKETS + sub;
+    }
+
+
+    /** RETURNS THE MIDPOINT OF THE GIVEN BUCKET */
+    private static long value(int index) {
+        if(index < LINEAR)
+            return index;
+
+        int magnitude = (index - LINEAR) / SUB_BUCKETS + FIRST_MAGNITUDE;
+        int sub = (index - LINEAR) % SUB_BUCKETS;
+        long width = 1L << (magnitude - SUB_BITS);
+        return (SUB_BUCKETS + sub) * width + width / 2;
+    }
+}
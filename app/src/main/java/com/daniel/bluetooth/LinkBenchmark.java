@@ -0,0 +1,423 @@
+package com.daniel.bluetooth;
+
+
+import java.util.BitSet;
+
+
+/** LINK BENCHMARK CLASS - MEASURES A LINK AGAINST A PEER THAT ECHOES EVERY FRAME
+ *   THE PROBE PHASE SENDS PACED, SEQUENCED AND TIMESTAMPED PROBES AND RECORDS THEIR
+ *   ROUND TRIP TIME. THE UPLOAD PHASE WRITES AS FAST AS THE LINK ACCEPTS AND THEN ASKS
+ *   THE PEER HOW MUCH ARRIVED, THE FLOOD PHASE DOES THE SAME WITH EVERY FRAME ECHOED.
+ *   RATES ARE TIMED UNTIL THE LAST REPLY ARRIVES SO SOCKET BUFFERING CAN'T INFLATE THEM.
+ *   FRAMES ARE "BM<phase><seq>:<nanos>:" PADDED TO THE PAYLOAD SIZE. A PEER IN SINK MODE
+ *   DOESN'T ECHO UPLOAD FRAMES AND ANSWERS THE COUNT REQUEST WITH "BMK<frames>:<bytes>:",
+ *   A PLAIN ECHO PEER ECHOES BOTH AND THE UPLOAD IS TIMED FROM ITS ECHOES INSTEAD */
+public class LinkBenchmark {
+    //CONSTANTS
+    public static final int MIN_PAYLOAD_SIZE = 32;
+    static final String PREFIX = "BM";
+    static final char PROBE_FRAME = 'P';
+    static final char UPLOAD_FRAME = 'U';
+    static final char COUNT_FRAME = 'C';
+    static final char COUNT_REPLY = 'K';
+    static final char FLOOD_FRAME = 'F';
+    private static final char SEPARATOR = ':';
+    private static final char PADDING = 'x';
+
+
+    //MEMBERS
+    private int _payloadSize;
+    private int _probeCount;
+    private long _probeInterval;
+    private long _floodDuration;
+    private long _drainTimeout;
+
+    private long _startNanos;
+    private LatencyHistogram _histogram;
+    private Phase _probes;
+    private Phase _upload;
+    private Phase _flood;
+    private boolean _countReplied;
+    private boolean _countEchoed;
+    private int _countFrames;
+    private long _countBytes;
+    private long _countNanos;
+
+
+    public LinkBenchmark() {
+        _payloadSize = MIN_PAYLOAD_SIZE;
+        _probeCount = 200;
+        _probeInterval = 20;
+        _floodDuration = 5000;
+        _drainTimeout = 2000;
+        _histogram = new LatencyHistogram();
+        _probes = new Phase();
+        _upload = new Phase();
+        _flood = new Phase();
+    }
+
+
+    /** SETS THE NUMBER OF CHARACTERS IN EACH FRAME, NOT COUNTING THE DELIMITER
+     *   MUST BE AT LEAST MIN_PAYLOAD_SIZE SO THE HEADER ALWAYS FITS */
+    public void setPayloadSize(int payloadSize) {
+        if(payloadSize < MIN_PAYLOAD_SIZE)
+            throw new IllegalArgumentException("payloadSize must be at least " + MIN_PAYLOAD_SIZE);
+
+        _payloadSize = payloadSize;
+    }
+
+
+    /** SETS THE NUMBER OF ROUND TRIP PROBES, 0 SKIPS THE PROBE PHASE */
+    public void setProbeCount(int probeCount) {
+        if(probeCount < 0)
+            throw new IllegalArgumentException("probeCount must not be negative");
+
+        _probeCount = probeCount;
+    }
+
+
+    /** SETS THE MILLISECONDS BETWEEN PROBES, 0 SENDS THEM BACK TO BACK */
+    public void setProbeInterval(long probeInterval) {
+        if(probeInterval < 0)
+            throw new IllegalArgumentException("probeInterval must not be negative");
+
+        _probeInterval = probeInterval;
+    }
+
+
+    /** SETS THE MILLISECONDS THE UPLOAD AND FLOOD PHASES EACH WRITE FOR, 0 SKIPS BOTH */
+    public void setFloodDuration(long floodDuration) {
+        if(floodDuration < 0)
+            throw new IllegalArgumentException("floodDuration must not be negative");
+
+        _floodDuration = floodDuration;
+    }
+
+
+    /** SETS THE MILLISECONDS TO WAIT FOR OUTSTANDING REPLIES AFTER EACH PHASE */
+    public void setDrainTimeout(long drainTimeout) {
+        if(drainTimeout < 0)
+            throw new IllegalArgumentException("drainTimeout must not be negative");
+
+        _drainTimeout = drainTimeout;
+    }
+
+
+    /** RUNS ALL PHASES, BLOCKING UNTIL DONE. REPLIES MUST BE PASSED TO FRAMERECEIVED
+     *   FROM ANOTHER THREAD WHILE THIS RUNS */
+    public Result run(FrameSender sender) {
+        synchronized (this) {
+            _startNanos = System.nanoTime();
+            _histogram.clear();
+            _probes.clear();
+            _upload.clear();
+            _flood.clear();
+            _countReplied = false;
+            _countEchoed = false;
+            _countFrames = 0;
+            _countBytes = 0;
+            _countNanos = 0;
+        }
+
+        Result result = new Result();
+
+        //probe phase, paced round trips
+        for(int i=0; i<_probeCount; i++) {
+            if(!send(sender, PROBE_FRAME, _probes, i))
+                break;
+
+            result._probesSent++;
+            if(_probeInterval > 0 && !sleep(_probeInterval))
+                break;
+        }
+        drain(PROBE_FRAME, result._probesSent);
+
+        if(_floodDuration > 0) {
+            //upload phase, the count request follows the last frame down the same stream
+            long uploadStart = elapsed();
+            result._uploadSent = write(sender, UPLOAD_FRAME, _upload);
+            if(sender.sendFrame(frame(COUNT_FRAME, 0)))
+                drain(COUNT_FRAME, 0);
+
+            //flood phase, every frame comes back
+            long floodStart = elapsed();
+            result._floodSent = write(sender, FLOOD_FRAME, _flood);
+            long floodWritten = elapsed();
+            drain(FLOOD_FRAME, result._floodSent);
+
+            synchronized (this) {
+                if(_countReplied) {
+                    //counted by the peer, timed until its answer arrived
+                    result._uploadReceived = _countFrames;
+                    result._outboundRate = rate(_countBytes, _countNanos - uploadStart);
+                } else {
+                    //plain echo peer, timed until the last echo arrived
+                    result._uploadReceived = _upload.received;
+                    result._outboundRate = rate(_upload.bytes, _upload.lastNanos - uploadStart);
+                }
+
+                result._floodReceived = _flood.received;
+                result._bytesReceived = _flood.bytes;
+                result._inboundRate = rate(_flood.bytes, _flood.lastNanos - floodStart);
+
+                //both directions at once, until the later of the last write and the last echo
+                long bytesSent = result._floodSent * (_payloadSize + 1L);
+                result._bidirectionalRate = rate(bytesSent + _flood.bytes,
+                        Math.max(floodWritten, _flood.lastNanos) - floodStart);
+            }
+        }
+
+        synchronized (this) {
+            result._probesReceived = _probes.received;
+            result._rttMin = _histogram.getMin();
+            result._rttP50 = _histogram.getPercentile(50);
+            result._rttP99 = _histogram.getPercentile(99);
+            result._rttMax = _histogram.getMax();
+            result._rttMean = _histogram.getMean();
+        }
+
+        return result;
+    }
+
+
+    /** HANDLES A FRAME FROM THE PEER WITHOUT ITS DELIMITER, RETURNS FALSE IF IT
+     *   ISN'T A BENCHMARK FRAME SO THE CALLER CAN PASS IT ON */
+    public boolean frameReceived(String frame) {
+        if(!frame.startsWith(PREFIX) || frame.length() < PREFIX.length() + 1)
+            return false;
+
+        long now = System.nanoTime();
+        char phase = frame.charAt(PREFIX.length());
+        int sep1 = frame.indexOf(SEPARATOR, PREFIX.length() + 1);
+        int sep2 = sep1 < 0 ? -1 : frame.indexOf(SEPARATOR, sep1 + 1);
+        if(sep2 < 0)
+            return true;
+
+        long first;
+        long second;
+        try {
+            first = Long.parseLong(frame.substring(PREFIX.length() + 1, sep1), 16);
+            second = Long.parseLong(frame.substring(sep1 + 1, sep2), 16);
+        } catch (NumberFormatException e) {
+            return true;
+        }
+
+        //the sequence has to fit an int, each phase checks it was actually sent
+        if(first < 0 || first > Integer.MAX_VALUE)
+            return true;
+
+        synchronized (this) {
+            long elapsed = now - _startNanos;
+            int seq = (int)first;
+
+            switch (phase) {
+                case PROBE_FRAME:
+                    if(_probes.record(seq, frame.length() + 1, elapsed))
+                        _histogram.record((elapsed - second) / 1000);
+                    break;
+                case UPLOAD_FRAME:
+                    _upload.record(seq, frame.length() + 1, elapsed);
+                    break;
+                case FLOOD_FRAME:
+                    _flood.record(seq, frame.length() + 1, elapsed);
+                    break;
+                case COUNT_FRAME:
+                    //the peer doesn't count, so it echoed the request after every upload echo
+                    _countEchoed = true;
+                    break;
+                case COUNT_REPLY:
+                    _countReplied = true;
+                    _countFrames = seq;
+                    _countBytes = second;
+                    _countNanos = elapsed;
+                    break;
+            }
+
+            notifyAll();
+        }
+
+        return true;
+    }
+
+
+    /** WRITES FRAMES OF THE PHASE FOR THE FLOOD DURATION, RETURNS THE NUMBER WRITTEN */
+    private int write(FrameSender sender, char phase, Phase replies) {
+        long end = System.nanoTime() + _floodDuration * 1000000L;
+        int seq = 0;
+        while (System.nanoTime() - end < 0 && send(sender, phase, replies, seq))
+            seq++;
+
+        return seq;
+    }
+
+
+    /** SENDS ONE FRAME OF THE PHASE, RETURNS FALSE IF THE LINK IS DOWN
+     *   THE SEQUENCE IS ACCEPTED BEFORE IT'S WRITTEN SINCE THE REPLY MAY BEAT THE WRITE */
+    private boolean send(FrameSender sender, char phase, Phase replies, int seq) {
+        replies.sent = seq + 1;
+        if(sender.sendFrame(frame(phase, seq)))
+            return true;
+
+        replies.sent = seq;
+        return false;
+    }
+
+
+    /** BUILDS A FRAME STAMPED WITH THE NANOSECONDS SINCE THE RUN STARTED */
+    private String frame(char phase, int seq) {
+        StringBuilder sb = new StringBuilder(_payloadSize);
+        sb.append(PREFIX).append(phase).append(Integer.toHexString(seq)).append(SEPARATOR);
+        sb.append(Long.toHexString(elapsed())).append(SEPARATOR);
+        while (sb.length() < _payloadSize)
+            sb.append(PADDING);
+
+        return sb.toString();
+    }
+
+
+    /** RETURNS THE NANOSECONDS SINCE THE RUN STARTED */
+    private long elapsed() {
+        return System.nanoTime() - _startNanos;
+    }
+
+
+    /** RETURNS BYTES PER SECOND, 0 IF NOTHING WAS TIMED */
+    private static double rate(long bytes, long nanos) {
+        return nanos <= 0 ? 0 : bytes * 1e9 / nanos;
+    }
+
+
+    /** WAITS UNTIL THE PHASE HAS ALL ITS REPLIES OR THE DRAIN TIMEOUT PASSES */
+    private synchronized void drain(char phase, int sent) {
+        long deadline = System.nanoTime() + _drainTimeout * 1000000L;
+
+        while (true) {
+            boolean done;
+            switch (phase) {
+                case PROBE_FRAME:
+                    done = _probes.received >= sent;
+                    break;
+                case COUNT_FRAME:
+                    done = _countReplied || _countEchoed;
+                    break;
+                default:
+                    done = _flood.received >= sent;
+                    break;
+            }
+
+            long remaining = (deadline - System.nanoTime()) / 1000000L;
+            if(done || remaining <= 0)
+                return;
+
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+
+    /** SLEEPS THE GIVEN MILLISECONDS, RETURNS FALSE IF INTERRUPTED */
+    private static boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+
+    /** PHASE CLASS - ECHOES RECEIVED FOR ONE PHASE, DUPLICATES ARE COUNTED ONCE
+     *   AND SEQUENCES THAT WERE NEVER SENT ARE IGNORED SO A STRAY FRAME CAN'T GROW THE SET */
+    private static class Phase {
+        BitSet seen = new BitSet();
+        volatile int sent;
+        int received;
+        long bytes;
+        long lastNanos;
+
+        void clear() {
+            seen.clear();
+            sent = 0;
+            received = 0;
+            bytes = 0;
+            lastNanos = 0;
+        }
+
+        /** RETURNS FALSE IF THE SEQUENCE WASN'T SENT OR WAS ALREADY RECEIVED */
+        boolean record(int seq, int length, long elapsed) {
+            if(seq >= sent || seen.get(seq))
+                return false;
+
+            seen.set(seq);
+            received++;
+            bytes += length;
+            lastNanos = elapsed;
+            return true;
+        }
+    }
+
+
+    /** RESULT CLASS - ROUND TRIP TIMES ARE IN MICROSECONDS, RATES IN BYTES PER SECOND
+     *   OUTBOUND IS THE UPLOAD PHASE ALONE, INBOUND AND BIDIRECTIONAL ARE THE FLOOD PHASE
+     *   WHERE BIDIRECTIONAL COUNTS THE BYTES WRITTEN AND THE BYTES ECHOED BACK */
+    public static class Result {
+        private int _probesSent;
+        private int _probesReceived;
+        private int _uploadSent;
+        private int _uploadReceived;
+        private int _floodSent;
+        private int _floodReceived;
+        private long _bytesReceived;
+        private long _rttMin;
+        private long _rttP50;
+        private long _rttP99;
+        private long _rttMax;
+        private double _rttMean;
+        private double _outboundRate;
+        private double _inboundRate;
+        private double _bidirectionalRate;
+
+        public int getProbesSent() { return _probesSent; }
+        public int getProbesLost() { return _probesSent - _probesReceived; }
+        public int getUploadSent() { return _uploadSent; }
+        public int getUploadLost() { return _uploadSent - _uploadReceived; }
+        public int getFloodSent() { return _floodSent; }
+        public int getFloodLost() { return _floodSent - _floodReceived; }
+        public long getBytesReceived() { return _bytesReceived; }
+        public long getRttMin() { return _rttMin; }
+        public long getRttP50() { return _rttP50; }
+        public long getRttP99() { return _rttP99; }
+        public long getRttMax() { return _rttMax; }
+        public double getRttMean() { return _rttMean; }
+        public double getOutboundRate() { return _outboundRate; }
+        public double getInboundRate() { return _inboundRate; }
+        public double getBidirectionalRate() { return _bidirectionalRate; }
+
+        @Override
+        public String toString() {
+            return String.format("RTT us min %d p50 %d p99 %d max %d, lost %d/%d\n"
+                            + "OUT %.0f B/s, lost %d/%d\n"
+                            + "IN %.0f B/s, BOTH %.0f B/s, lost %d/%d",
+                    _rttMin, _rttP50, _rttP99, _rttMax, getProbesLost(), _probesSent,
+                    _outboundRate, getUploadLost(), _uploadSent,
+                    _inboundRate, _bidirectionalRate, getFloodLost(), _floodSent);
+        }
+    }
+
+
+    /** INTERFACE THAT WRITES A FRAME TO THE PEER, RETURNS FALSE IF THE LINK IS DOWN */
+    public interface FrameSender {
+        boolean sendFrame(String frame);
+    }
+
+
+    /** LISTENER INTERFACE CALLED ONCE THE BENCHMARK HAS FINISHED */
+    public interface ResultListener {
+        void benchmarkFinished(Result result);
+    }
+}
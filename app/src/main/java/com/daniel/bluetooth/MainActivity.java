@@ -158,12 +158,15 @@ public class MainActivity extends Activity implements BluetoothConnection.Blueto
             return;
         }
 
+        //send the data, the reliable backlog may be full
+        if(!_btConn.sendData(send)) {
+            sendToast("Send Failed, Try Again");
+            return;
+        }
+
         //add sent data to list view
         _dataArrayAdapter.add(send);
         _dataArrayAdapter.notifyDataSetChanged();
-
-        //send the data
-        _btConn.sendData(send);
     }
 
 
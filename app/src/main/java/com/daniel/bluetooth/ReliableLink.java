@@ -0,0 +1,445 @@
+package com.daniel.bluetooth;
+
+
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+
+
+/** RELIABLE LINK CLASS - SLIDING WINDOW DELIVERY WITH SELECTIVE ACKNOWLEDGEMENTS
+ *   EACH SENDER NUMBERS ITS FRAMES FROM 0 WITHIN A RANDOM SESSION THAT IS OPENED WITH
+ *   "S<session>" AND ACKNOWLEDGED BEFORE ANY DATA IS SENT, SO EITHER END MAY RESTART.
+ *   DATA FRAMES ARE "D<session>.<seq>:<payload>" AND ACK FRAMES "A<session>.<base>:<bitmap>"
+ *   WHERE BASE IS THE NEXT EXPECTED SEQUENCE AND BIT i OF BITMAP MARKS base+1+i AS RECEIVED.
+ *   A RECEIVER THAT DOESN'T KNOW THE SESSION OF A DATA FRAME ANSWERS "R<session>" AND THE
+ *   SENDER OPENS A NEW SESSION, RENUMBERING EVERYTHING NOT YET ACKNOWLEDGED */
+public class ReliableLink {
+    //CONSTANTS
+    public static final int MAX_WINDOW = 64;
+    public static final int DEFAULT_WINDOW = 16;
+    public static final long DEFAULT_TIMEOUT = 500;
+    public static final int DEFAULT_MAX_BACKLOG = 1024;
+    private static final char SYN_FRAME = 'S';
+    private static final char RESET_FRAME = 'R';
+    private static final char DATA_FRAME = 'D';
+    private static final char ACK_FRAME = 'A';
+    private static final char SESSION_SEPARATOR = '.';
+    private static final char SEPARATOR = ':';
+
+
+    //MEMBERS
+    private int _window;
+    private long _timeout;
+    private int _maxBacklog;
+    private ReliableListener _listener;
+    private Timer _timer;
+    private Random _random;
+    private final Object _deliverLock;
+
+    //sender side, slots are indexed by sequence number modulo MAX_WINDOW
+    private int _session;
+    private boolean _synAcked;
+    private long _synTime;
+    private int _sendBase;
+    private int _nextSeq;
+    private String[] _sendPayloads;
+    private long[] _sendTimes;
+    private boolean[] _sendAcked;
+    private ArrayDeque<String> _backlog;
+
+    //receiver side, accepts up to MAX_WINDOW ahead so peers may use any window size
+    private int _peerSession;
+    private int _recvBase;
+    private String[] _recvPayloads;
+    private boolean[] _recvFilled;
+
+    //counters
+    private long _retransmits;
+    private long _duplicates;
+
+
+    /** CONSTRUCTOR FOR RELIABLE LINK, OPENS THE FIRST SESSION RIGHT AWAY
+     * @param window number of unacknowledged frames allowed in flight (1 - 64)
+     * @param timeout milliseconds before an unacknowledged frame is resent
+     * @param listener listener that writes frames and receives ordered payloads */
+    public ReliableLink(int window, long timeout, ReliableListener listener) {
+        if(window < 1 || window > MAX_WINDOW)
+            throw new IllegalArgumentException("window must be between 1 and " + MAX_WINDOW);
+        if(timeout <= 0)
+            throw new IllegalArgumentException("timeout must be positive");
+
+        _window = window;
+        _timeout = timeout;
+        _maxBacklog = DEFAULT_MAX_BACKLOG;
+        _listener = listener;
+        _random = new Random();
+        _deliverLock = new Object();
+        _sendPayloads = new String[MAX_WINDOW];
+        _sendTimes = new long[MAX_WINDOW];
+        _sendAcked = new boolean[MAX_WINDOW];
+        _backlog = new ArrayDeque<>();
+        _recvPayloads = new String[MAX_WINDOW];
+        _recvFilled = new boolean[MAX_WINDOW];
+        _peerSession = 0;
+        _recvBase = 0;
+
+        synchronized (this) {
+            startSession();
+        }
+
+        //check for expired frames twice per timeout period
+        _timer = new Timer("ReliableLink", true);
+        _timer.schedule(new TimerTask() {
+            public void run() {
+                checkTimeouts();
+            }
+        }, timeout / 2 + 1, timeout / 2 + 1);
+    }
+
+
+    /** SETS THE NUMBER OF PAYLOADS THAT MAY WAIT FOR ROOM IN THE WINDOW */
+    public synchronized void setMaxBacklog(int maxBacklog) {
+        if(maxBacklog < 0)
+            throw new IllegalArgumentException("maxBacklog must not be negative");
+
+        _maxBacklog = maxBacklog;
+    }
+
+
+    /** QUEUES THE PAYLOAD FOR DELIVERY, SENDS IMMEDIATELY IF THE WINDOW HAS ROOM
+     *   RETURNS FALSE IF THE BACKLOG IS FULL AND THE PAYLOAD WAS REFUSED
+     *   PAYLOAD MUST NOT CONTAIN THE CARRIAGE RETURN DELIMITER */
+    public synchronized boolean send(String payload) {
+        if(!_synAcked || _nextSeq - _sendBase >= _window) {
+            if(_backlog.size() >= _maxBacklog)
+                return false;
+
+            _backlog.add(payload);
+            return true;
+        }
+
+        transmit(payload);
+        return true;
+    }
+
+
+    /** HANDLES A FRAME RECEIVED FROM THE STREAM, WITHOUT ITS DELIMITER
+     *   PAYLOADS ARE DELIVERED IN ORDER EVEN IF SEVERAL THREADS CALL THIS, BUT A
+     *   SINGLE READER THREAD KEEPS DELIVERY IN THE ORDER FRAMES ARRIVED */
+    public void frameReceived(String frame) {
+        if(frame.length() < 2)
+            return;
+
+        char type = frame.charAt(0);
+        int dot = frame.indexOf(SESSION_SEPARATOR);
+        int sep = frame.indexOf(SEPARATOR);
+        int session;
+        int seq = 0;
+        try {
+            if(type == SYN_FRAME || type == RESET_FRAME) {
+                session = (int)Long.parseLong(frame.substring(1), 16);
+            } else {
+                if(dot < 2 || sep < dot + 2)
+                    return;
+                session = (int)Long.parseLong(frame.substring(1, dot), 16);
+                seq = (int)Long.parseLong(frame.substring(dot + 1, sep), 16);
+            }
+        } catch (NumberFormatException e) {
+            return;
+        }
+
+        switch (type) {
+            case SYN_FRAME:
+                synReceived(session);
+                break;
+            case RESET_FRAME:
+                resetReceived(session);
+                break;
+            case DATA_FRAME:
+                dataFrameReceived(session, seq, frame.substring(sep + 1));
+                break;
+            case ACK_FRAME:
+                long bitmap;
+                try {
+                    bitmap = Long.parseLong(frame.substring(sep + 1), 16);
+                } catch (NumberFormatException e) {
+                    return;
+                }
+                ackFrameReceived(session, seq, bitmap);
+                break;
+        }
+    }
+
+
+    /** CALLED ONCE A NEW STREAM IS AVAILABLE, REOPENS THE SESSION IF IT WASN'T ACKNOWLEDGED
+     *   OTHERWISE RESENDS EVERYTHING STILL UNACKNOWLEDGED IN SEQUENCE ORDER */
+    public synchronized void linkUp() {
+        if(!_synAcked) {
+            sendSyn();
+        } else {
+            long now = System.currentTimeMillis();
+            for(int seq = _sendBase; seq - _nextSeq < 0; seq++) {
+                int slot = slot(seq);
+                if(_sendAcked[slot])
+                    continue;
+
+                _sendTimes[slot] = now;
+                _listener.sendFrame(dataFrame(seq, _sendPayloads[slot]));
+            }
+        }
+
+        //acknowledge what we already have so the peer doesn't resend it
+        sendAck();
+    }
+
+
+    /** DROPS EVERYTHING NOT YET ACKNOWLEDGED AND OPENS A NEW SESSION */
+    public synchronized void reset() {
+        _backlog.clear();
+        for(int i=0; i<MAX_WINDOW; i++)
+            _sendPayloads[i] = null;
+        _sendBase = _nextSeq;
+
+        startSession();
+    }
+
+
+    /** STOPS THE RETRANSMISSION TIMER */
+    public void close() {
+        _timer.cancel();
+    }
+
+
+    /** RETURNS TRUE ONCE THE PEER HAS ACKNOWLEDGED THE CURRENT SESSION */
+    public synchronized boolean isSynchronized() {
+        return _synAcked;
+    }
+
+
+    /** RETURNS THE NUMBER OF FRAMES SENT BUT NOT YET ACKNOWLEDGED */
+    public synchronized int getInFlight() {
+        return _nextSeq - _sendBase;
+    }
+
+
+    /** RETURNS THE NUMBER OF PAYLOADS WAITING FOR ROOM IN THE WINDOW */
+    public synchronized int getBacklog() {
+        return _backlog.size();
+    }
+
+
+    /** RETURNS THE NUMBER OF FRAMES RESENT AFTER A TIMEOUT */
+    public synchronized long getRetransmits() {
+        return _retransmits;
+    }
+
+
+    /** RETURNS THE NUMBER OF DUPLICATE DATA FRAMES DISCARDED */
+    public synchronized long getDuplicates() {
+        return _duplicates;
+    }
+
+
+    /** OPENS A NEW SESSION, ANYTHING UNACKNOWLEDGED IS RENUMBERED FROM 0 AHEAD OF THE BACKLOG */
+    private void startSession() {
+        for(int seq = _nextSeq - 1; seq - _sendBase >= 0; seq--) {
+            int slot = slot(seq);
+            if(!_sendAcked[slot] && _sendPayloads[slot] != null)
+                _backlog.addFirst(_sendPayloads[slot]);
+            _sendPayloads[slot] = null;
+        }
+
+        int session;
+        do {
+            session = _random.nextInt();
+        } while (session == 0 || session == _session);
+
+        _session = session;
+        _synAcked = false;
+        _sendBase = 0;
+        _nextSeq = 0;
+        sendSyn();
+    }
+
+
+    /** WRITES THE SESSION OPENING FRAME */
+    private void sendSyn() {
+        _synTime = System.currentTimeMillis();
+        _listener.sendFrame(SYN_FRAME + Integer.toHexString(_session));
+    }
+
+
+    /** ASSIGNS THE NEXT SEQUENCE NUMBER TO THE PAYLOAD AND WRITES IT */
+    private void transmit(String payload) {
+        int seq = _nextSeq++;
+        int slot = slot(seq);
+
+        _sendPayloads[slot] = payload;
+        _sendAcked[slot] = false;
+        _sendTimes[slot] = System.currentTimeMillis();
+
+        //a failed write is left to the retransmission timer or linkUp
+        _listener.sendFrame(dataFrame(seq, payload));
+    }
+
+
+    /** BUILDS THE DATA FRAME FOR THE GIVEN SEQUENCE IN THE CURRENT SESSION */
+    private String dataFrame(int seq, String payload) {
+        return DATA_FRAME + Integer.toHexString(_session) + SESSION_SEPARATOR
+                + Integer.toHexString(seq) + SEPARATOR + payload;
+    }
+
+
+    /** ADOPTS THE PEER'S NEW SESSION, UNDELIVERED FRAMES OF THE OLD ONE ARE DROPPED */
+    private synchronized void synReceived(int session) {
+        if(session != _peerSession) {
+            _peerSession = session;
+            _recvBase = 0;
+            for(int i=0; i<MAX_WINDOW; i++) {
+                _recvPayloads[i] = null;
+                _recvFilled[i] = false;
+            }
+        }
+
+        sendAck();
+    }
+
+
+    /** THE PEER LOST OUR SESSION, OPENS A NEW ONE UNLESS ONE IS ALREADY OPENING */
+    private synchronized void resetReceived(int session) {
+        if(session == _session && _synAcked)
+            startSession();
+    }
+
+
+    /** STORES THE PAYLOAD, DELIVERS EVERYTHING NOW IN ORDER AND ACKNOWLEDGES */
+    private void dataFrameReceived(int session, int seq, String payload) {
+        //held while delivering so payloads leave in order whatever thread calls in
+        synchronized (_deliverLock) {
+            ArrayDeque<String> deliver = new ArrayDeque<>();
+
+            synchronized (this) {
+                //a frame of a session we never opened, ask the sender to start over
+                if(session != _peerSession) {
+                    _listener.sendFrame(RESET_FRAME + Integer.toHexString(session));
+                    return;
+                }
+
+                int offset = seq - _recvBase;
+
+                if(offset < 0 || offset >= MAX_WINDOW || _recvFilled[slot(seq)]) {
+                    //already delivered, buffered or outside window, re-ack so the peer moves on
+                    _duplicates++;
+                } else {
+                    _recvPayloads[slot(seq)] = payload;
+                    _recvFilled[slot(seq)] = true;
+
+                    //collect the contiguous run starting at the base
+                    while (_recvFilled[slot(_recvBase)]) {
+                        int slot = slot(_recvBase);
+                        deliver.add(_recvPayloads[slot]);
+                        _recvPayloads[slot] = null;
+                        _recvFilled[slot] = false;
+                        _recvBase++;
+                    }
+                }
+
+                sendAck();
+            }
+
+            //deliver outside the state lock so a slow listener doesn't stall acks
+            for(String s : deliver)
+                _listener.payloadReceived(s);
+        }
+    }
+
+
+    /** MARKS CUMULATIVE AND SELECTIVELY ACKNOWLEDGED FRAMES AND SLIDES THE WINDOW */
+    private synchronized void ackFrameReceived(int session, int base, long bitmap) {
+        //acks for an older session or for frames never sent are stale
+        if(session != _session || base - _nextSeq > 0)
+            return;
+
+        //the first ack of a session confirms the peer is listening
+        _synAcked = true;
+
+        //a stale ack may arrive late, its cumulative part is then already covered
+        for(int seq = _sendBase; seq - base < 0; seq++)
+            _sendAcked[slot(seq)] = true;
+
+        //bitmap is relative to the ack's own base, not our current one
+        for(int i=0; i<MAX_WINDOW-1; i++) {
+            if((bitmap & (1L << i)) == 0)
+                continue;
+
+            int seq = base + 1 + i;
+            if(seq - _nextSeq >= 0)
+                break;
+            if(seq - _sendBase >= 0)
+                _sendAcked[slot(seq)] = true;
+        }
+
+        //slide the window past every acknowledged frame
+        while (_sendBase - _nextSeq < 0 && _sendAcked[slot(_sendBase)]) {
+            _sendPayloads[slot(_sendBase)] = null;
+            _sendBase++;
+        }
+
+        //fill the freed window from the backlog
+        while (!_backlog.isEmpty() && _nextSeq - _sendBase < _window)
+            transmit(_backlog.poll());
+    }
+
+
+    /** SENDS THE NEXT EXPECTED SEQUENCE WITH A BITMAP OF FRAMES BUFFERED PAST IT */
+    private void sendAck() {
+        if(_peerSession == 0)
+            return;
+
+        long bitmap = 0;
+        for(int i=0; i<MAX_WINDOW-1; i++) {
+            if(_recvFilled[slot(_recvBase + 1 + i)])
+                bitmap |= 1L << i;
+        }
+
+        _listener.sendFrame(ACK_FRAME + Integer.toHexString(_peerSession) + SESSION_SEPARATOR
+                + Integer.toHexString(_recvBase) + SEPARATOR + Long.toHexString(bitmap));
+    }
+
+
+    /** RESENDS THE SESSION OPENING OR EVERY UNACKNOWLEDGED FRAME OLDER THAN THE TIMEOUT */
+    private synchronized void checkTimeouts() {
+        long now = System.currentTimeMillis();
+        if(!_synAcked) {
+            if(now - _synTime >= _timeout) {
+                _retransmits++;
+                sendSyn();
+            }
+            return;
+        }
+
+        for(int seq = _sendBase; seq - _nextSeq < 0; seq++) {
+            int slot = slot(seq);
+            if(_sendAcked[slot] || now - _sendTimes[slot] < _timeout)
+                continue;
+
+            _sendTimes[slot] = now;
+            _retransmits++;
+            _listener.sendFrame(dataFrame(seq, _sendPayloads[slot]));
+        }
+    }
+
+
+    /** RETURNS THE BUFFER SLOT FOR THE GIVEN SEQUENCE NUMBER, STABLE ACROSS WRAPAROUND */
+    private int slot(int seq) {
+        return seq & (MAX_WINDOW - 1);
+    }
+
+
+    /** LISTENER INTERFACE THAT WRITES RAW FRAMES AND RECEIVES IN ORDER PAYLOADS */
+    public interface ReliableListener {
+        boolean sendFrame(String frame);
+        void payloadReceived(String payload);
+    }
+}
@@ -0,0 +1,394 @@
+package com.daniel.bluetooth;
+
+
+/** SAMPLE STAGE CLASS - PARSES NUMERIC FRAMES AND KEEPS WINDOWED STATISTICS
+ *   EVERY SAMPLE IS PASSED TO THE SAMPLE LISTENER AT FULL RATE, WHILE THE DECIMATED
+ *   LISTENER RECEIVES ONE MIN/MAX PAIR PER BUCKET SO PEAKS SURVIVE DOWNSAMPLING.
+ *   LISTENERS ARE CALLED ON THE THREAD THAT ADDS THE SAMPLE */
+public class SampleStage {
+    //CONSTANTS
+    private static final int MAX_DIGITS = 18;
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for(int i=1; i<POWERS_OF_TEN.length; i++)
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i-1] * 10;
+    }
+
+
+    //MEMBERS
+    private int _capacity;
+    private double[] _values;
+    private long _total;
+    private int _count;
+    private double _sum;
+    private int _sinceRecompute;
+
+    //monotonic queues of sequence numbers, front is the window min / max
+    private long[] _minQueue;
+    private int _minHead;
+    private int _minSize;
+    private long[] _maxQueue;
+    private int _maxHead;
+    private int _maxSize;
+
+    //decimation bucket
+    private long _bucketNanos;
+    private long _bucketStart;
+    private double _bucketMin;
+    private double _bucketMax;
+    private boolean _bucketOpen;
+
+    private byte[] _scratch;
+    private volatile SampleListener _sampleListener;
+    private volatile DecimatedListener _decimatedListener;
+
+
+    /** CONSTRUCTOR FOR SAMPLE STAGE
+     * @param window number of most recent samples the statistics cover
+     * @param pointsPerSecond target rate of decimated points, 0 disables decimation */
+    public SampleStage(int window, int pointsPerSecond) {
+        if(window < 1)
+            throw new IllegalArgumentException("window must be positive");
+
+        _capacity = window;
+        _values = new double[window];
+        _minQueue = new long[window];
+        _maxQueue = new long[window];
+        _scratch = new byte[64];
+        setPointsPerSecond(pointsPerSecond);
+        clear();
+    }
+
+
+    /** SETS THE TARGET DECIMATED RATE, EACH BUCKET YIELDS TWO POINTS (MIN AND MAX) */
+    public synchronized void setPointsPerSecond(int pointsPerSecond) {
+        if(pointsPerSecond < 0)
+            throw new IllegalArgumentException("pointsPerSecond must not be negative");
+
+        _bucketNanos = pointsPerSecond == 0 ? 0 : 2000000000L / pointsPerSecond;
+        _bucketOpen = false;
+    }
+
+
+    /** SETS THE LISTENER THAT RECEIVES EVERY SAMPLE */
+    public void setSampleListener(SampleListener listener) {
+        _sampleListener = listener;
+    }
+
+
+    /** SETS THE LISTENER THAT RECEIVES THE DECIMATED VIEW */
+    public void setDecimatedListener(DecimatedListener listener) {
+        _decimatedListener = listener;
+    }
+
+
+    /** PARSES THE BYTES AND ADDS THE SAMPLE, RETURNS FALSE IF NOT NUMERIC */
+    public boolean add(byte[] bytes, int offset, int length, long timeNanos) {
+        double value = parse(bytes, offset, length);
+        if(Double.isNaN(value))
+            return false;
+
+        add(value, timeNanos);
+        return true;
+    }
+
+
+    /** PARSES THE CHARACTERS AND ADDS THE SAMPLE, RETURNS FALSE IF NOT NUMERIC */
+    public boolean add(CharSequence chars, long timeNanos) {
+        double value;
+        synchronized (this) {
+            int length = chars.length();
+            if(length > _scratch.length)
+                return false;
+
+            //numbers are ascii, narrow into the scratch buffer instead of allocating
+            for(int i=0; i<length; i++) {
+                char c = chars.charAt(i);
+                if(c > 0x7F)
+                    return false;
+                _scratch[i] = (byte)c;
+            }
+            value = parse(_scratch, 0, length);
+        }
+
+        if(Double.isNaN(value))
+            return false;
+
+        add(value, timeNanos);
+        return true;
+    }
+
+
+    /** ADDS THE SAMPLE TO THE WINDOW AND THE CURRENT DECIMATION BUCKET */
+    public void add(double value, long timeNanos) {
+        boolean emit = false;
+        long emitTime = 0;
+        double emitMin = 0;
+        double emitMax = 0;
+
+        synchronized (this) {
+            long seq = _total++;
+            int slot = (int)(seq % _capacity);
+
+            //drop the sample leaving the window
+            if(_count == _capacity)
+                _sum -= _values[slot];
+            else
+                _count++;
+
+            //expire queue fronts before their slot is overwritten
+            if(_minSize > 0 && _minQueue[_minHead] <= seq - _capacity) {
+                _minHead = (_minHead + 1) % _capacity;
+                _minSize--;
+            }
+            if(_maxSize > 0 && _maxQueue[_maxHead] <= seq - _capacity) {
+                _maxHead = (_maxHead + 1) % _capacity;
+                _maxSize--;
+            }
+
+            _values[slot] = value;
+            _sum += value;
+
+            //rebuild the running sum once per window so rounding error can't accumulate
+            if(++_sinceRecompute >= _capacity) {
+                _sinceRecompute = 0;
+                _sum = 0;
+                for(int i=0; i<_count; i++)
+                    _sum += _values[i];
+            }
+
+            //pop samples from the back that can never be the min / max again
+            while (_minSize > 0 && _values[(int)(_minQueue[(_minHead + _minSize - 1) % _capacity] % _capacity)] >= value)
+                _minSize--;
+            _minQueue[(_minHead + _minSize) % _capacity] = seq;
+            _minSize++;
+
+            while (_maxSize > 0 && _values[(int)(_maxQueue[(_maxHead + _maxSize - 1) % _capacity] % _capacity)] <= value)
+                _maxSize--;
+            _maxQueue[(_maxHead + _maxSize) % _capacity] = seq;
+            _maxSize++;
+
+            if(_bucketNanos > 0) {
+                //close the bucket once the sample falls past its end
+                if(_bucketOpen && timeNanos - _bucketStart >= _bucketNanos) {
+                    emit = true;
+                    emitTime = _bucketStart;
+                    emitMin = _bucketMin;
+                    emitMax = _bucketMax;
+                    _bucketOpen = false;
+                }
+
+                if(!_bucketOpen) {
+                    _bucketOpen = true;
+                    _bucketStart = timeNanos;
+                    _bucketMin = value;
+                    _bucketMax = value;
+                } else {
+                    if(value < _bucketMin)
+                        _bucketMin = value;
+                    if(value > _bucketMax)
+                        _bucketMax = value;
+                }
+            }
+        }
+
+        //notify outside the lock so a slow listener doesn't block readers of the stats
+        SampleListener sampleListener = _sampleListener;
+        if(sampleListener != null)
+            sampleListener.sampleReceived(timeNanos, value);
+
+        DecimatedListener decimatedListener = _decimatedListener;
+        if(emit && decimatedListener != null)
+            decimatedListener.bucketReceived(emitTime, emitMin, emitMax);
+    }
+
+
+    /** EMITS THE OPEN DECIMATION BUCKET, FOR WHEN THE STREAM PAUSES OR STOPS
+     *   THE NEXT SAMPLE OPENS A NEW BUCKET */
+    public void flush() {
+        double min;
+        double max;
+        long start;
+
+        synchronized (this) {
+            if(!_bucketOpen)
+                return;
+
+            min = _bucketMin;
+            max = _bucketMax;
+            start = _bucketStart;
+            _bucketOpen = false;
+        }
+
+        DecimatedListener decimatedListener = _decimatedListener;
+        if(decimatedListener != null)
+            decimatedListener.bucketReceived(start, min, max);
+    }
+
+
+    /** CLEARS THE WINDOW AND THE CURRENT BUCKET */
+    public synchronized void clear() {
+        _total = 0;
+        _count = 0;
+        _sum = 0;
+        _sinceRecompute = 0;
+        _minHead = 0;
+        _minSize = 0;
+        _maxHead = 0;
+        _maxSize = 0;
+        _bucketOpen = false;
+    }
+
+
+    /** RETURNS THE NUMBER OF SAMPLES IN THE WINDOW */
+    public synchronized int getCount() {
+        return _count;
+    }
+
+
+    /** RETURNS THE NUMBER OF SAMPLES ADDED SINCE CREATED OR CLEARED */
+    public synchronized long getTotal() {
+        return _total;
+    }
+
+
+    /** RETURNS THE SMALLEST SAMPLE IN THE WINDOW, NAN IF EMPTY */
+    public synchronized double getMin() {
+        if(_minSize == 0)
+            return Double.NaN;
+
+        return _values[(int)(_minQueue[_minHead] % _capacity)];
+    }
+
+
+    /** RETURNS THE LARGEST SAMPLE IN THE WINDOW, NAN IF EMPTY */
+    public synchronized double getMax() {
+        if(_maxSize == 0)
+            return Double.NaN;
+
+        return _values[(int)(_maxQueue[_maxHead] % _capacity)];
+    }
+
+
+    /** RETURNS THE MEAN OF THE WINDOW, NAN IF EMPTY */
+    public synchronized double getMean() {
+        if(_count == 0)
+            return Double.NaN;
+
+        return _sum / _count;
+    }
+
+
+    /** PARSES A DECIMAL NUMBER SUCH AS "-12.5" OR "3E-2" WITHOUT CREATING A STRING
+     *   SURROUNDING WHITESPACE IS IGNORED, RETURNS NAN IF THE BYTES AREN'T A NUMBER
+     *   OR CONTAIN ANYTHING OUTSIDE ASCII, SUCH AS A UTF-8 MINUS OR DEGREE SIGN */
+    public static double parse(byte[] bytes, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+
+        //trim whitespace, including the frame delimiter
+        while (i < end && isWhitespace(bytes[i]))
+            i++;
+        while (end > i && isWhitespace(bytes[end-1]))
+            end--;
+        if(i == end)
+            return Double.NaN;
+
+        boolean negative = false;
+        if(bytes[i] == '-' || bytes[i] == '+') {
+            negative = bytes[i] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0;
+        int significant = 0;
+
+        //integer part, digits beyond the mantissa only scale it
+        while (i < end && bytes[i] >= '0' && bytes[i] <= '9') {
+            if(significant < MAX_DIGITS) {
+                mantissa = mantissa * 10 + (bytes[i] - '0');
+                if(mantissa != 0)
+                    significant++;
+            } else
+                exponent++;
+            digits++;
+            i++;
+        }
+
+        //fractional part
+        if(i < end && bytes[i] == '.') {
+            i++;
+            while (i < end && bytes[i] >= '0' && bytes[i] <= '9') {
+                if(significant < MAX_DIGITS) {
+                    mantissa = mantissa * 10 + (bytes[i] - '0');
+                    if(mantissa != 0)
+                        significant++;
+                    exponent--;
+                }
+                digits++;
+                i++;
+            }
+        }
+
+        if(digits == 0)
+            return Double.NaN;
+
+        //exponent part
+        if(i < end && (bytes[i] == 'e' || bytes[i] == 'E')) {
+            i++;
+            boolean negativeExp = false;
+            if(i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+                negativeExp = bytes[i] == '-';
+                i++;
+            }
+
+            int exp = 0;
+            int expDigits = 0;
+            while (i < end && bytes[i] >= '0' && bytes[i] <= '9') {
+                if(exp < 10000)
+                    exp = exp * 10 + (bytes[i] - '0');
+                expDigits++;
+                i++;
+            }
+
+            if(expDigits == 0)
+                return Double.NaN;
+            exponent += negativeExp ? -exp : exp;
+        }
+
+        //trailing garbage means this wasn't a number
+        if(i != end)
+            return Double.NaN;
+
+        double value = mantissa;
+        if(exponent != 0 && mantissa != 0) {
+            int abs = Math.abs(exponent);
+            double scale = abs < POWERS_OF_TEN.length ? POWERS_OF_TEN[abs] : Math.pow(10, abs);
+            value = exponent < 0 ? value / scale : value * scale;
+        }
+
+        return negative ? -value : value;
+    }
+
+
+    /** RETURNS TRUE FOR THE ASCII WHITESPACE A FRAME MAY BE PADDED WITH
+     *   BYTES ARE SIGNED, SO A PLAIN <= ' ' WOULD ALSO MATCH EVERY NON ASCII BYTE */
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+
+    /** LISTENER INTERFACE CALLED FOR EVERY SAMPLE AT FULL RATE */
+    public interface SampleListener {
+        void sampleReceived(long timeNanos, double value);
+    }
+
+
+    /** LISTENER INTERFACE CALLED ONCE PER DECIMATION BUCKET WITH ITS MIN AND MAX */
+    public interface DecimatedListener {
+        void bucketReceived(long startNanos, double min, double max);
+    }
+}
@@ -0,0 +1,248 @@
+package com.daniel.bluetooth;
+
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/** SUBSCRIPTION CLASS - ONE CONSUMER OF FRAMES AND STATE CHANGES WITH ITS OWN FILTER,
+ *   BOUNDED QUEUE, EXECUTOR AND OVERFLOW POLICY SO A SLOW CONSUMER ONLY FALLS BEHIND
+ *   ITSELF. EVENTS ARE DELIVERED IN ORDER, ONE AT A TIME, ON THE GIVEN EXECUTOR */
+public class Subscription {
+    //CONSTANTS
+    public static final int DROP_OLDEST = 0;
+    public static final int DROP_NEWEST = 1;
+    public static final int BLOCK = 2;
+
+
+    //MEMBERS
+    private Subscriber _subscriber;
+    private Filter _filter;
+    private int _overflow;
+    private Executor _executor;
+    private ArrayBlockingQueue<Object> _queue;
+    private AtomicBoolean _draining;
+    private volatile boolean _closed;
+    private AtomicLong _dropped;
+    private AtomicReference<Integer> _pendingState;
+
+
+    /** CONSTRUCTOR FOR SUBSCRIPTION
+     * @param subscriber subscriber that receives the events
+     * @param filter filter that picks the events, see the static factories
+     * @param capacity maximum number of events waiting for the subscriber
+     * @param overflow DROP_OLDEST, DROP_NEWEST or BLOCK when the queue is full
+     * @param executor executor the subscriber is called on */
+    public Subscription(Subscriber subscriber, Filter filter, int capacity, int overflow, Executor executor) {
+        if(subscriber == null || filter == null || executor == null)
+            throw new IllegalArgumentException("subscriber, filter and executor are required");
+        if(overflow != DROP_OLDEST && overflow != DROP_NEWEST && overflow != BLOCK)
+            throw new IllegalArgumentException("unknown overflow policy " + overflow);
+
+        _subscriber = subscriber;
+        _filter = filter;
+        _overflow = overflow;
+        _executor = executor;
+        _queue = new ArrayBlockingQueue<>(capacity);
+        _draining = new AtomicBoolean(false);
+        _closed = false;
+        _dropped = new AtomicLong();
+        _pendingState = new AtomicReference<>();
+    }
+
+
+    /** QUEUES THE FRAME IF THE FILTER ACCEPTS IT
+     *   FILTERS RUN ON THE PUBLISHING THREAD, ONE THAT THROWS DROPS THE EVENT */
+    void publishFrame(Frame frame) {
+        if(_closed)
+            return;
+
+        try {
+            if(!_filter.acceptFrame(frame))
+                return;
+        } catch (RuntimeException e) {
+            _dropped.incrementAndGet();
+            return;
+        }
+
+        enqueue(frame, _overflow);
+    }
+
+
+    /** QUEUES THE STATE CHANGE IF THE FILTER ACCEPTS IT
+     *   STATE CHANGES NEVER BLOCK SINCE THEY MAY COME FROM THE SUBSCRIBER'S OWN THREAD.
+     *   A BLOCK SUBSCRIBER'S FRAMES ARE NEVER EVICTED FOR ONE EITHER, IF ITS QUEUE IS FULL
+     *   THE STATE WAITS ASIDE AND A LATER STATE CHANGE REPLACES IT */
+    void publishState(int state) {
+        if(_closed)
+            return;
+
+        try {
+            if(!_filter.acceptState(state))
+                return;
+        } catch (RuntimeException e) {
+            _dropped.incrementAndGet();
+            return;
+        }
+
+        if(_overflow != BLOCK) {
+            enqueue(state, _overflow);
+            return;
+        }
+
+        if(!_queue.offer(state) && _pendingState.getAndSet(state) != null)
+            _dropped.incrementAndGet();
+        scheduleDrain();
+    }
+
+
+    /** STOPS DELIVERY AND DISCARDS WAITING EVENTS */
+    void close() {
+        _closed = true;
+        _queue.clear();
+        _pendingState.set(null);
+    }
+
+
+    /** RETURNS THE NUMBER OF EVENTS DROPPED BECAUSE THE QUEUE WAS FULL OR THE FILTER THREW
+     *   INCLUDING STATE CHANGES A NEWER ONE REPLACED WHILE A BLOCK QUEUE WAS FULL */
+    public long getDropped() {
+        return _dropped.get();
+    }
+
+
+    /** RETURNS THE NUMBER OF EVENTS WAITING FOR THE SUBSCRIBER */
+    public int getPending() {
+        return _queue.size() + (_pendingState.get() != null ? 1 : 0);
+    }
+
+
+    /** ADDS THE EVENT ACCORDING TO THE OVERFLOW POLICY AND SCHEDULES A DRAIN */
+    private void enqueue(Object event, int overflow) {
+        switch (overflow) {
+            case DROP_OLDEST:
+                while (!_queue.offer(event)) {
+                    if(_queue.poll() != null)
+                        _dropped.incrementAndGet();
+                }
+                break;
+            case DROP_NEWEST:
+                if(!_queue.offer(event)) {
+                    _dropped.incrementAndGet();
+                    return;
+                }
+                break;
+            case BLOCK:
+                try {
+                    _queue.put(event);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    _dropped.incrementAndGet();
+                    return;
+                }
+                break;
+        }
+
+        scheduleDrain();
+    }
+
+
+    /** STARTS A DRAIN ON THE EXECUTOR UNLESS ONE IS ALREADY RUNNING */
+    private void scheduleDrain() {
+        if((!_queue.isEmpty() || _pendingState.get() != null) && _draining.compareAndSet(false, true))
+            _executor.execute(_drain);
+    }
+
+
+    /** DRAIN MEMBER, DELIVERS EVERYTHING QUEUED THEN RESCHEDULES IF MORE ARRIVED
+     *   IF THE SUBSCRIBER THROWS, THE EXCEPTION REACHES THE EXECUTOR AND DELIVERY
+     *   CARRIES ON WITH THE NEXT EVENT */
+    private final Runnable _drain = new Runnable() {
+        public void run() {
+            try {
+                while (!_closed) {
+                    requeueState();
+                    Object event = _queue.poll();
+                    if(event == null)
+                        break;
+
+                    if(event instanceof Frame)
+                        _subscriber.frameReceived((Frame) event);
+                    else
+                        _subscriber.stateChanged((Integer) event);
+                }
+            } finally {
+                _draining.set(false);
+
+                //an event may have been queued after the last poll
+                scheduleDrain();
+            }
+        }
+    };
+
+
+    /** MOVES A STATE CHANGE THAT DIDN'T FIT BEHIND THE QUEUED EVENTS ONCE THERE IS ROOM */
+    private void requeueState() {
+        Integer state = _pendingState.getAndSet(null);
+        if(state == null || _queue.offer(state))
+            return;
+
+        //still full, keep it aside unless a newer state took its place meanwhile
+        if(!_pendingState.compareAndSet(null, state))
+            _dropped.incrementAndGet();
+    }
+
+
+    /** RETURNS A FILTER THAT ACCEPTS EVERY FRAME AND STATE CHANGE */
+    public static Filter all() {
+        return new Filter() {
+            public boolean acceptFrame(Frame frame) { return true; }
+            public boolean acceptState(int state) { return true; }
+        };
+    }
+
+
+    /** RETURNS A FILTER THAT ACCEPTS ONLY STATE CHANGES */
+    public static Filter statesOnly() {
+        return new Filter() {
+            public boolean acceptFrame(Frame frame) { return false; }
+            public boolean acceptState(int state) { return true; }
+        };
+    }
+
+
+    /** RETURNS A FILTER THAT ACCEPTS FRAMES BEGINNING WITH THE GIVEN PREFIX */
+    public static Filter prefix(String prefix) {
+        final byte[] bytes = Hex.stringToHex(prefix);
+        return new Filter() {
+            public boolean acceptFrame(Frame frame) { return frame.startsWith(bytes); }
+            public boolean acceptState(int state) { return false; }
+        };
+    }
+
+
+    /** RETURNS A FILTER THAT ACCEPTS FRAMES WITH THE GIVEN CHANNEL BYTE AT THE INDEX */
+    public static Filter channel(final int index, final byte channel) {
+        return new Filter() {
+            public boolean acceptFrame(Frame frame) { return index < frame.length() && frame.get(index) == channel; }
+            public boolean acceptState(int state) { return false; }
+        };
+    }
+
+
+    /** FILTER INTERFACE THAT PICKS WHICH EVENTS REACH THE SUBSCRIBER */
+    public interface Filter {
+        boolean acceptFrame(Frame frame);
+        boolean acceptState(int state);
+    }
+
+
+    /** SUBSCRIBER INTERFACE CALLED ON THE SUBSCRIPTION'S EXECUTOR */
+    public interface Subscriber {
+        void frameReceived(Frame frame);
+        void stateChanged(int state);
+    }
+}
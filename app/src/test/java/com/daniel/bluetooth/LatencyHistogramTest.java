@@ -0,0 +1,49 @@
+package com.daniel.bluetooth;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void isExactForSmallValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(int i=1; i<=20; i++)
+            histogram.record(i);
+
+        assertEquals(10, histogram.getPercentile(50));
+        assertEquals(20, histogram.getPercentile(99));
+        assertEquals(1, histogram.getMin());
+        assertEquals(20, histogram.getMax());
+        assertEquals(10.5, histogram.getMean(), 0);
+    }
+
+
+    @Test
+    public void staysWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(int i=1; i<=1000; i++)
+            histogram.record(i * 100);
+
+        assertEquals(50000, histogram.getPercentile(50), 50000 * 0.07);
+        assertEquals(99000, histogram.getPercentile(99), 99000 * 0.07);
+        assertEquals(100000, histogram.getPercentile(100));
+        assertEquals(100, histogram.getMin());
+    }
+
+
+    @Test
+    public void handlesEmptyAndNegative() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(0, histogram.getMin());
+
+        histogram.record(-5);
+        assertEquals(0, histogram.getMax());
+        assertEquals(1, histogram.getCount());
+
+        histogram.clear();
+        assertEquals(0, histogram.getCount());
+    }
+}
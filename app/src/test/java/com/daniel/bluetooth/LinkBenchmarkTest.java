@@ -0,0 +1,142 @@
+package com.daniel.bluetooth;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LinkBenchmarkTest {
+    private static final long RATE = 20000;
+    private static final long DELAY = 10;
+    private static final int PAYLOAD_SIZE = 64;
+
+    //the peer never delivers early, so scheduling can only make rtts longer and rates
+    //lower. bounds on the modelled side are exact, the other side is left loose
+    private static final long RTT_FLOOR = 2 * DELAY * 1000 + 2 * (PAYLOAD_SIZE + 1) * 1000000 / RATE;
+
+
+    @Test
+    public void measuresEchoPeer() {
+        LinkBenchmark benchmark = benchmark();
+        EchoPeer peer = new EchoPeer(benchmark, DELAY, 0, RATE, 1);
+        LinkBenchmark.Result result = benchmark.run(peer);
+        peer.close();
+
+        //round trip is two delays plus a frame crossing each way
+        assertTrue(result.getRttMin() >= RTT_FLOOR);
+        assertTrue(result.getRttP50() < 10 * RTT_FLOOR);
+        assertEquals(0, result.getProbesLost());
+        assertEquals(0, result.getUploadLost());
+        assertEquals(0, result.getFloodLost());
+
+        //echoes share nothing with the outbound path, so each way runs at the link rate
+        assertRate(RATE, result.getOutboundRate());
+        assertRate(RATE, result.getInboundRate());
+        assertRate(2 * RATE, result.getBidirectionalRate());
+    }
+
+
+    @Test
+    public void measuresUploadWithSinkPeer() {
+        LinkBenchmark benchmark = benchmark();
+        EchoPeer peer = new EchoPeer(benchmark, DELAY, 0, RATE, 2);
+        peer.setSink(true);
+        LinkBenchmark.Result result = benchmark.run(peer);
+        peer.close();
+
+        assertEquals(0, result.getUploadLost());
+        assertRate(RATE, result.getOutboundRate());
+    }
+
+
+    @Test
+    public void countsLostFrames() {
+        LinkBenchmark benchmark = benchmark();
+        benchmark.setDrainTimeout(300);
+        EchoPeer peer = new EchoPeer(benchmark, 5, 10, 0, 3);
+        LinkBenchmark.Result result = benchmark.run(peer);
+        peer.close();
+
+        assertTrue(result.getProbesLost() > 0);
+        assertTrue(result.getProbesLost() < result.getProbesSent());
+        assertTrue(result.getFloodLost() > 0);
+    }
+
+
+    @Test
+    public void neverSendsMoreThanThePayloadSize() {
+        final LinkBenchmark benchmark = new LinkBenchmark();
+        benchmark.setPayloadSize(LinkBenchmark.MIN_PAYLOAD_SIZE);
+        benchmark.setProbeCount(10);
+        benchmark.setProbeInterval(0);
+        benchmark.setFloodDuration(20);
+        benchmark.setDrainTimeout(0);
+
+        benchmark.run(new LinkBenchmark.FrameSender() {
+            public boolean sendFrame(String frame) {
+                assertEquals(LinkBenchmark.MIN_PAYLOAD_SIZE, frame.length());
+                return true;
+            }
+        });
+    }
+
+
+    @Test
+    public void ignoresSequencesThatWereNeverSent() {
+        final LinkBenchmark benchmark = new LinkBenchmark();
+        benchmark.setProbeCount(10);
+        benchmark.setProbeInterval(0);
+        benchmark.setFloodDuration(20);
+        benchmark.setDrainTimeout(0);
+
+        //echo every frame straight back, each followed by a stray one far past the end
+        LinkBenchmark.Result result = benchmark.run(new LinkBenchmark.FrameSender() {
+            public boolean sendFrame(String frame) {
+                benchmark.frameReceived(frame);
+                benchmark.frameReceived(frame.substring(0, 3) + "7fffffff:0:");
+                return true;
+            }
+        });
+
+        assertEquals(0, result.getProbesLost());
+        assertEquals(0, result.getUploadLost());
+        assertEquals(0, result.getFloodLost());
+        assertEquals(result.getFloodSent() * (LinkBenchmark.MIN_PAYLOAD_SIZE + 1L), result.getBytesReceived());
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsPayloadSmallerThanHeader() {
+        new LinkBenchmark().setPayloadSize(LinkBenchmark.MIN_PAYLOAD_SIZE - 1);
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeProbeCount() {
+        new LinkBenchmark().setProbeCount(-1);
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeDuration() {
+        new LinkBenchmark().setFloodDuration(-1);
+    }
+
+
+    /** THE MODEL CAPS THE RATE, A BUSY SCHEDULER CAN ONLY PULL IT DOWN */
+    private static void assertRate(double expected, double actual) {
+        assertTrue("rate " + actual, actual <= expected * 1.001);
+        assertTrue("rate " + actual, actual > expected / 2);
+    }
+
+
+    private static LinkBenchmark benchmark() {
+        LinkBenchmark benchmark = new LinkBenchmark();
+        benchmark.setPayloadSize(PAYLOAD_SIZE);
+        benchmark.setProbeCount(20);
+        benchmark.setProbeInterval(10);
+        benchmark.setFloodDuration(600);
+        benchmark.setDrainTimeout(1000);
+        return benchmark;
+    }
+}
@@ -0,0 +1,312 @@
+package com.daniel.bluetooth;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReliableLinkTest {
+    private static final long TIMEOUT = 30;
+
+    private List<ReliableLink> _links = new ArrayList<>();
+    private List<ExecutorService> _executors = new ArrayList<>();
+
+
+    @After
+    public void tearDown() {
+        for(ReliableLink link : _links)
+            link.close();
+        for(ExecutorService executor : _executors)
+            executor.shutdownNow();
+    }
+
+
+    @Test
+    public void deliversInOrderUnderLossAndOutage() throws Exception {
+        Pair pair = new Pair(8, 20, 1);
+
+        for(int i=0; i<200; i++) {
+            if(i == 100) {
+                pair.up = false;
+                Thread.sleep(100);
+                pair.up = true;
+                pair.a.linkUp();
+                pair.b.linkUp();
+            }
+            pair.a.send("m" + i);
+        }
+
+        waitFor(pair.received, 200);
+        assertInOrder(pair.received, 0, 200);
+        assertTrue(pair.a.getRetransmits() > 0);
+    }
+
+
+    @Test
+    public void suppressesDuplicates() {
+        Capture capture = new Capture();
+        ReliableLink link = link(4, capture);
+
+        link.frameReceived("S1");
+        link.frameReceived("D1.0:a");
+        link.frameReceived("D1.0:a");
+        link.frameReceived("D1.1:b");
+
+        assertEquals(2, capture.payloads.size());
+        assertEquals("a", capture.payloads.get(0));
+        assertEquals("b", capture.payloads.get(1));
+        assertEquals(1, link.getDuplicates());
+    }
+
+
+    @Test
+    public void acksOutOfOrderFramesWithBitmap() {
+        Capture capture = new Capture();
+        ReliableLink link = link(4, capture);
+
+        link.frameReceived("S1");
+        link.frameReceived("D1.2:c");
+        assertEquals("A1.0:2", capture.lastFrame());
+
+        link.frameReceived("D1.1:b");
+        assertEquals("A1.0:3", capture.lastFrame());
+
+        link.frameReceived("D1.0:a");
+        assertEquals("A1.3:0", capture.lastFrame());
+        assertEquals(3, capture.payloads.size());
+    }
+
+
+    @Test
+    public void selectiveAckStopsRetransmission() throws Exception {
+        Capture capture = new Capture();
+        ReliableLink link = link(4, capture);
+        String session = capture.frames.get(0).substring(1);
+
+        //confirm the session, then send three frames
+        link.frameReceived("A" + session + ".0:0");
+        assertTrue(link.isSynchronized());
+        link.send("a");
+        link.send("b");
+        link.send("c");
+
+        //frames 1 and 2 are selectively acknowledged, frame 0 is missing
+        link.frameReceived("A" + session + ".0:3");
+        capture.frames.clear();
+        Thread.sleep(TIMEOUT * 5);
+
+        List<String> resent = capture.snapshot();
+        assertFalse(resent.isEmpty());
+        for(String frame : resent)
+            assertEquals("D" + session + ".0:a", frame);
+        assertEquals(3, link.getInFlight());
+
+        link.frameReceived("A" + session + ".3:0");
+        assertEquals(0, link.getInFlight());
+    }
+
+
+    @Test
+    public void recoversWhenSenderRestarts() throws Exception {
+        Pair pair = new Pair(8, 0, 2);
+
+        for(int i=0; i<100; i++)
+            pair.a.send("m" + i);
+        waitFor(pair.received, 100);
+
+        //the sending app restarts with a fresh link and no memory of the session
+        pair.a.close();
+        pair.a = link(8, pair.toB);
+        for(int i=100; i<105; i++)
+            pair.a.send("m" + i);
+
+        waitFor(pair.received, 105);
+        assertInOrder(pair.received, 0, 105);
+    }
+
+
+    @Test
+    public void recoversWhenReceiverRestarts() throws Exception {
+        Pair pair = new Pair(8, 0, 3);
+
+        for(int i=0; i<100; i++)
+            pair.a.send("m" + i);
+        waitFor(pair.received, 100);
+
+        //the receiving app restarts, its new link has never seen the sender's session
+        pair.b.close();
+        pair.received.clear();
+        pair.b = link(8, pair.toA);
+        for(int i=100; i<105; i++)
+            pair.a.send("m" + i);
+
+        waitFor(pair.received, 5);
+        assertInOrder(pair.received, 100, 5);
+    }
+
+
+    @Test
+    public void refusesPayloadsOnceBacklogIsFull() {
+        Capture capture = new Capture();
+        ReliableLink link = link(1, capture);
+        link.setMaxBacklog(2);
+
+        //nothing goes out until the peer acknowledges the session
+        assertTrue(link.send("a"));
+        assertTrue(link.send("b"));
+        assertFalse(link.send("c"));
+        assertEquals(2, link.getBacklog());
+    }
+
+
+    @Test
+    public void keepsDeliveryOrderedWithConcurrentReaders() throws Exception {
+        final Capture capture = new Capture();
+        final ReliableLink link = link(64, capture);
+        link.frameReceived("S1");
+
+        //frames arrive shuffled across several threads
+        final List<String> frames = new ArrayList<>();
+        for(int i=0; i<64; i++)
+            frames.add("D1." + Integer.toHexString(i) + ":p" + i);
+        Collections.shuffle(frames, new Random(4));
+
+        final CountDownLatch done = new CountDownLatch(4);
+        for(int t=0; t<4; t++) {
+            final int start = t;
+            new Thread() {
+                public void run() {
+                    for(int i=start; i<frames.size(); i+=4)
+                        link.frameReceived(frames.get(i));
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        done.await();
+        assertInOrder(capture.payloads, 0, 64);
+    }
+
+
+    /** CREATES A LINK THAT IS CLOSED AFTER THE TEST */
+    private ReliableLink link(int window, ReliableLink.ReliableListener listener) {
+        ReliableLink link = new ReliableLink(window, TIMEOUT, listener);
+        _links.add(link);
+        return link;
+    }
+
+
+    /** WAITS UNTIL THE LIST HOLDS THE GIVEN NUMBER OF ITEMS */
+    private static void waitFor(List<String> list, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 20000;
+        while (list.size() < count && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        assertEquals(count, list.size());
+    }
+
+
+    private static void assertInOrder(List<String> list, int first, int count) {
+        synchronized (list) {
+            assertEquals(count, list.size());
+            for(int i=0; i<count; i++)
+                assertEquals("m" + (first + i), list.get(i).replace('p', 'm'));
+        }
+    }
+
+
+    /** LISTENER THAT RECORDS EVERYTHING THE LINK WRITES AND DELIVERS */
+    private static class Capture implements ReliableLink.ReliableListener {
+        final List<String> frames = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> payloads = Collections.synchronizedList(new ArrayList<String>());
+
+        public boolean sendFrame(String frame) {
+            frames.add(frame);
+            return true;
+        }
+
+        public void payloadReceived(String payload) {
+            payloads.add(payload);
+        }
+
+        String lastFrame() {
+            return frames.get(frames.size() - 1);
+        }
+
+        List<String> snapshot() {
+            synchronized (frames) {
+                return new ArrayList<>(frames);
+            }
+        }
+    }
+
+
+    /** TWO LINKS JOINED BY ORDERED, LOSSY, ASYNCHRONOUS CHANNELS LIKE AN RFCOMM STREAM */
+    private class Pair {
+        volatile ReliableLink a;
+        volatile ReliableLink b;
+        volatile boolean up = true;
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        final Channel toB;
+        final Channel toA;
+
+        Pair(int window, int lossPercent, long seed) {
+            Random random = new Random(seed);
+            toB = new Channel(lossPercent, random, true);
+            toA = new Channel(lossPercent, random, false);
+            a = link(window, toB);
+            b = link(window, toA);
+        }
+
+        class Channel implements ReliableLink.ReliableListener {
+            private final int _lossPercent;
+            private final Random _random;
+            private final boolean _toB;
+            private final ExecutorService _executor;
+
+            Channel(int lossPercent, Random random, boolean toB) {
+                _lossPercent = lossPercent;
+                _random = random;
+                _toB = toB;
+                _executor = Executors.newSingleThreadExecutor();
+                _executors.add(_executor);
+            }
+
+            public boolean sendFrame(final String frame) {
+                if(!up)
+                    return false;
+
+                synchronized (_random) {
+                    if(_random.nextInt(100) < _lossPercent)
+                        return true;
+                }
+
+                _executor.execute(new Runnable() {
+                    public void run() {
+                        //the first session opening may go out before the peer exists
+                        ReliableLink target = _toB ? b : a;
+                        if(target != null)
+                            target.frameReceived(frame);
+                    }
+                });
+                return true;
+            }
+
+            public void payloadReceived(String payload) {
+                //b writes through the channel towards a, so b delivers here
+                if(!_toB)
+                    received.add(payload);
+            }
+        }
+    }
+}
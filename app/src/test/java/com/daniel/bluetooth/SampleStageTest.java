@@ -0,0 +1,143 @@
+package com.daniel.bluetooth;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SampleStageTest {
+
+    @Test
+    public void parsesDecimalNumbers() {
+        assertEquals(12.5, parse("12.5"), 0);
+        assertEquals(-3, parse("-3"), 0);
+        assertEquals(1000, parse("1e3"), 0);
+        assertEquals(0.000123, parse(" 0.000123\r"), 1e-18);
+        assertEquals(0.0725, parse("+7.25E-2"), 1e-15);
+        assertEquals(0.5, parse(".5"), 0);
+        assertEquals(1, parse("1."), 0);
+    }
+
+
+    @Test
+    public void rejectsNonNumbers() {
+        assertTrue(Double.isNaN(parse("")));
+        assertTrue(Double.isNaN(parse("abc")));
+        assertTrue(Double.isNaN(parse("1e")));
+        assertTrue(Double.isNaN(parse("1-2")));
+        assertTrue(Double.isNaN(parse(".")));
+    }
+
+
+    @Test
+    public void rejectsNonAsciiCharacters() {
+        SampleStage stage = new SampleStage(4, 0);
+
+        //U+0131 would narrow to '1'
+        assertFalse(stage.add("\u01312", 0));
+        assertEquals(0, stage.getCount());
+        assertTrue(stage.add("12", 0));
+        assertEquals(12, stage.getMax(), 0);
+    }
+
+
+    @Test
+    public void rejectsNonAsciiBytes() {
+        //utf-8 minus sign before the digit, degree sign after it
+        byte[] minus = {(byte)0xE2, (byte)0x88, (byte)0x92, '5', '\r'};
+        byte[] degrees = {'2', '5', (byte)0xC2, (byte)0xB0, '\r'};
+        assertTrue(Double.isNaN(SampleStage.parse(minus, 0, minus.length)));
+        assertTrue(Double.isNaN(SampleStage.parse(degrees, 0, degrees.length)));
+
+        SampleStage stage = new SampleStage(4, 0);
+        assertFalse(stage.add(minus, 0, minus.length - 1, 0));
+        assertFalse(stage.add(degrees, 0, degrees.length - 1, 0));
+        assertEquals(0, stage.getCount());
+        assertTrue(Double.isNaN(new Frame(minus, minus.length - 1, 0).toDouble()));
+    }
+
+
+    @Test
+    public void tracksWindowedStatistics() {
+        SampleStage stage = new SampleStage(50, 0);
+        ArrayDeque<Double> window = new ArrayDeque<>();
+        Random random = new Random(5);
+
+        for(int i=0; i<5000; i++) {
+            double value = random.nextInt(1000) - 500;
+            stage.add(value, i);
+            window.add(value);
+            if(window.size() > 50)
+                window.poll();
+
+            double sum = 0;
+            for(double d : window)
+                sum += d;
+
+            assertEquals(window.size(), stage.getCount());
+            assertEquals(Collections.min(window), stage.getMin(), 0);
+            assertEquals(Collections.max(window), stage.getMax(), 0);
+            assertEquals(sum / window.size(), stage.getMean(), 1e-9);
+        }
+    }
+
+
+    @Test
+    public void meanDoesNotKeepRoundingError() {
+        SampleStage stage = new SampleStage(4, 0);
+
+        //huge values swamp the small ones in a purely running sum
+        for(int i=0; i<4; i++)
+            stage.add(1e16, i);
+        for(int i=1; i<=4; i++)
+            stage.add(i, i);
+
+        assertEquals(2.5, stage.getMean(), 0);
+    }
+
+
+    @Test
+    public void decimatesToMinMaxPerBucket() {
+        //10 points per second, so a bucket is 200 ms
+        SampleStage stage = new SampleStage(10, 10);
+        final List<double[]> buckets = new ArrayList<>();
+        stage.setDecimatedListener(new SampleStage.DecimatedListener() {
+            public void bucketReceived(long startNanos, double min, double max) {
+                buckets.add(new double[]{startNanos, min, max});
+            }
+        });
+
+        long ms = 1000000L;
+        stage.add(1, 0);
+        stage.add(9, 50 * ms);
+        stage.add(-4, 150 * ms);
+        stage.add(2, 200 * ms);
+        stage.add(3, 250 * ms);
+        assertEquals(1, buckets.size());
+        assertEquals(-4, buckets.get(0)[1], 0);
+        assertEquals(9, buckets.get(0)[2], 0);
+
+        //the last bucket only comes out once the stream is flushed
+        stage.flush();
+        assertEquals(2, buckets.size());
+        assertEquals(200 * ms, buckets.get(1)[0], 0);
+        assertEquals(2, buckets.get(1)[1], 0);
+        assertEquals(3, buckets.get(1)[2], 0);
+
+        stage.flush();
+        assertEquals(2, buckets.size());
+    }
+
+
+    private static double parse(String s) {
+        byte[] bytes = s.getBytes();
+        return SampleStage.parse(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,253 @@
+package com.daniel.bluetooth;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SubscriptionTest {
+
+    @Test
+    public void dropsOldestWhenFull() {
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        Subscription subscription = new Subscription(recorder, Subscription.all(), 2, Subscription.DROP_OLDEST, executor);
+
+        subscription.publishFrame(frame("a"));
+        subscription.publishFrame(frame("b"));
+        subscription.publishFrame(frame("c"));
+        executor.runAll();
+
+        assertEquals(1, subscription.getDropped());
+        assertEquals("[b, c]", recorder.frames.toString());
+    }
+
+
+    @Test
+    public void dropsNewestWhenFull() {
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        Subscription subscription = new Subscription(recorder, Subscription.all(), 2, Subscription.DROP_NEWEST, executor);
+
+        subscription.publishFrame(frame("a"));
+        subscription.publishFrame(frame("b"));
+        subscription.publishFrame(frame("c"));
+        executor.runAll();
+
+        assertEquals(1, subscription.getDropped());
+        assertEquals("[a, b]", recorder.frames.toString());
+    }
+
+
+    @Test
+    public void blocksPublisherUntilSubscriberCatchesUp() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        final Subscription subscription = new Subscription(recorder, Subscription.all(), 1, Subscription.BLOCK, executor);
+
+        Thread publisher = new Thread() {
+            public void run() {
+                for(String data : new String[]{"a", "b", "c"})
+                    subscription.publishFrame(frame(data));
+            }
+        };
+        publisher.start();
+
+        //the second frame waits for room in the queue
+        long deadline = System.currentTimeMillis() + 5000;
+        while (publisher.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        assertEquals(Thread.State.WAITING, publisher.getState());
+        assertEquals(1, subscription.getPending());
+        assertEquals(0, recorder.frames.size());
+
+        while (publisher.isAlive() || !executor.tasks.isEmpty()) {
+            executor.runAll();
+            Thread.sleep(1);
+        }
+
+        assertEquals("[a, b, c]", recorder.frames.toString());
+        assertEquals(0, subscription.getDropped());
+    }
+
+
+    @Test
+    public void stateChangeDoesNotEvictBlockedFrames() {
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        Subscription subscription = new Subscription(recorder, Subscription.all(), 2, Subscription.BLOCK, executor);
+
+        subscription.publishFrame(frame("a"));
+        subscription.publishFrame(frame("b"));
+        subscription.publishState(5);
+        executor.runAll();
+
+        assertEquals("[a, b]", recorder.frames.toString());
+        assertEquals("[5]", recorder.states.toString());
+        assertEquals(0, subscription.getDropped());
+    }
+
+
+    @Test
+    public void coalescesStateChangesWhileBlockedQueueIsFull() {
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        Subscription subscription = new Subscription(recorder, Subscription.all(), 1, Subscription.BLOCK, executor);
+
+        subscription.publishFrame(frame("a"));
+        subscription.publishState(4);
+        subscription.publishState(1);
+        assertEquals(2, subscription.getPending());
+        executor.runAll();
+
+        //the newest state arrives after the frame queued before it
+        assertEquals("[a]", recorder.frames.toString());
+        assertEquals("[1]", recorder.states.toString());
+        assertEquals(1, subscription.getDropped());
+        assertTrue(executor.tasks.isEmpty());
+    }
+
+
+    @Test
+    public void keepsDeliveringAfterSubscriberThrows() {
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        recorder.throwOn = "b";
+        Subscription subscription = new Subscription(recorder, Subscription.all(), 8, Subscription.DROP_OLDEST, executor);
+
+        subscription.publishFrame(frame("a"));
+        subscription.publishFrame(frame("b"));
+        subscription.publishFrame(frame("c"));
+        try {
+            executor.runAll();
+            fail("subscriber exception should reach the executor");
+        } catch (IllegalStateException e) {
+            //expected
+        }
+
+        //the drain rescheduled itself for the event after the failure
+        executor.runAll();
+        subscription.publishFrame(frame("d"));
+        executor.runAll();
+
+        assertEquals("[a, b, c, d]", recorder.frames.toString());
+        assertEquals(0, subscription.getPending());
+    }
+
+
+    @Test
+    public void dropsEventsWhenFilterThrows() {
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        Subscription subscription = new Subscription(recorder, new Subscription.Filter() {
+            public boolean acceptFrame(Frame frame) { throw new IllegalStateException(); }
+            public boolean acceptState(int state) { return true; }
+        }, 8, Subscription.DROP_OLDEST, executor);
+
+        subscription.publishFrame(frame("a"));
+        subscription.publishState(5);
+        executor.runAll();
+
+        assertEquals(1, subscription.getDropped());
+        assertEquals(0, recorder.frames.size());
+        assertEquals(1, recorder.states.size());
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNullFilter() {
+        new Subscription(new Recorder(), null, 8, Subscription.DROP_OLDEST, new ManualExecutor());
+    }
+
+
+    @Test
+    public void filtersByPrefixChannelAndState() {
+        ManualExecutor executor = new ManualExecutor();
+        Recorder prefix = new Recorder();
+        Recorder channel = new Recorder();
+        Recorder states = new Recorder();
+        List<Subscription> subscriptions = new ArrayList<>();
+        subscriptions.add(new Subscription(prefix, Subscription.prefix("BM"), 8, Subscription.DROP_OLDEST, executor));
+        subscriptions.add(new Subscription(channel, Subscription.channel(1, (byte) '2'), 8, Subscription.DROP_OLDEST, executor));
+        subscriptions.add(new Subscription(states, Subscription.statesOnly(), 8, Subscription.DROP_OLDEST, executor));
+
+        for(String data : new String[]{"BMP1", "x2", "B", "y3"})
+            for(Subscription subscription : subscriptions)
+                subscription.publishFrame(frame(data));
+        for(Subscription subscription : subscriptions)
+            subscription.publishState(0);
+        executor.runAll();
+
+        assertEquals("[BMP1]", prefix.frames.toString());
+        assertEquals("[x2]", channel.frames.toString());
+        assertEquals(0, states.frames.size());
+        assertEquals(1, states.states.size());
+        assertEquals(0, prefix.states.size());
+    }
+
+
+    @Test
+    public void sharesFramesBetweenSubscribers() {
+        ManualExecutor executor = new ManualExecutor();
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        Subscription a = new Subscription(first, Subscription.all(), 8, Subscription.DROP_OLDEST, executor);
+        Subscription b = new Subscription(second, Subscription.all(), 8, Subscription.DROP_OLDEST, executor);
+
+        Frame frame = frame("12.5");
+        a.publishFrame(frame);
+        b.publishFrame(frame);
+        executor.runAll();
+
+        assertSame(frame, first.frames.get(0));
+        assertSame(frame, second.frames.get(0));
+    }
+
+
+    private static Frame frame(String data) {
+        byte[] bytes = Hex.stringToHex(data + "\r");
+        return new Frame(bytes, bytes.length - 1, 0);
+    }
+
+
+    /** EXECUTOR THAT RUNS TASKS ONLY WHEN ASKED, ON THE TEST THREAD */
+    private static class ManualExecutor implements Executor {
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = tasks.poll()) != null)
+                task.run();
+        }
+    }
+
+
+    /** SUBSCRIBER THAT RECORDS EVERYTHING IT RECEIVES */
+    private static class Recorder implements Subscription.Subscriber {
+        final List<Frame> frames = new ArrayList<>();
+        final List<Integer> states = new ArrayList<>();
+        String throwOn;
+
+        public void frameReceived(Frame frame) {
+            frames.add(frame);
+            if(frame.toString().equals(throwOn))
+                throw new IllegalStateException("subscriber failed");
+        }
+
+        public void stateChanged(int state) {
+            states.add(state);
+        }
+    }
+}